@@ -0,0 +1,76 @@
+package software;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-word cost of the decoder tables: instruction classification, length decoding and
+ * SYSTEM/CSR classification, over 1 MB of synthetic instruction words.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+    private static final int WORDS = 256 * 1024;
+
+    private int[] words;
+    private int[] systemWords;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        words = new int[WORDS];
+        systemWords = new int[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            words[i] = random.nextInt() | 0x3;
+            systemWords[i] = (random.nextInt() & ~0x7F) | RiscVDecoder.OPCODE_SYSTEM;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int classify32() {
+        int sum = 0;
+        for (int word : words) {
+            sum += RiscVDecoder.classify32(word);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int decodeParcels() {
+        int sum = 0;
+        for (int word : words) {
+            int parcel = word >>> 16;
+            sum += RiscVDecoder.instructionLength(parcel) == 2 ? RiscVDecoder.classify16(parcel) : 0;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int classifyCSR() {
+        int sum = 0;
+        for (int word : systemWords) {
+            int csr = RiscVDecoder.csrAddress(word);
+            sum += RiscVDecoder.systemOp(word) + RiscVDecoder.privilegeIndex(csr) + RiscVDecoder.accessibilityIndex(csr);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public ScanResult recordSites() {
+        ScanResult result = new ScanResult();
+        for (int i = 0; i < WORDS; i++) {
+            result.addSystemInstruction(4L * i, systemWords[i]);
+        }
+        return result;
+    }
+}
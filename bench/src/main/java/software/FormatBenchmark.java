@@ -0,0 +1,57 @@
+package software;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per "0xADDR 0xDATA" line of the hand-written formatter of ImageHandler, next to the
+ * String.format it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+    private static final int WORDS = 16 * 1024;
+
+    private int[] words;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        words = new int[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            words[i] = random.nextInt();
+        }
+        buffer = new byte[WORDS * 32];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int formatLine() {
+        int position = 0;
+        long address = 0x80000000L;
+        for (int word : words) {
+            position = ImageHandler.formatLine(buffer, position, address, word);
+            address += 4;
+        }
+        return position;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int stringFormat() {
+        int length = 0;
+        long address = 0x80000000L;
+        for (int word : words) {
+            length += String.format("0x%08X 0x%08X\n", address, word).length();
+            address += 4;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,155 @@
+package software;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Whole-image runs of the tools on synthetic images generated at setup: random instruction
+ * words with SYSTEM instructions and zero-filled stretches mixed in, plus a gzipped copy and
+ * the image split into four parts for stitching. The bytes counter gives the throughput in
+ * image bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class ImageBenchmark {
+
+    @Param({"1", "64", "512"})
+    public int sizeMB;
+
+    private Path directory;
+    private File image;
+    private File gzipImage;
+    private Path output;
+    private List<StitchBinaries.Entry> layout;
+    private ByteBuffer mapped;
+
+    /**
+     * Image bytes processed, reported as a rate next to the operations
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("wildcat-bench");
+        image = directory.resolve("Image.bin.bin").toFile();
+        gzipImage = directory.resolve("Image.bin.gz").toFile();
+        output = directory.resolve("output");
+
+        SplittableRandom random = new SplittableRandom(42);
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             OutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gzipImage)), 1 << 16)) {
+            for (int mb = 0; mb < sizeMB; mb++) {
+                chunk.clear();
+                while (chunk.hasRemaining()) {
+                    int kind = random.nextInt(64);
+                    int word = kind == 0 ? (random.nextInt() & ~0x7F) | RiscVDecoder.OPCODE_SYSTEM
+                            : kind < 16 ? 0 : random.nextInt();
+                    chunk.putInt(word);
+                }
+                gzip.write(chunk.array());
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }
+        }
+
+        // Four parts with 1 MB gaps between them
+        long quarter = (long) sizeMB << 18;
+        layout = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+            for (int part = 0; part < 4; part++) {
+                Path file = directory.resolve("part" + part + ".bin");
+                try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    channel.transferTo(part * quarter, quarter, out);
+                }
+                layout.add(new StitchBinaries.Entry(file, part * (quarter + (1 << 20)), 1, (byte) 0));
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mapped = null;
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public ScanResult scanParallel(Bytes bytes) throws IOException {
+        bytes.bytes += image.length();
+        return RiscVOpcodeScanner.scanFile(image, Runtime.getRuntime().availableProcessors(), ByteOrder.BIG_ENDIAN);
+    }
+
+    @Benchmark
+    public ScanResult scanSequential(Bytes bytes) throws IOException {
+        bytes.bytes += image.length();
+        return RiscVOpcodeScanner.scanFile(image, 1, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Benchmark
+    public InstructionMix scanMix(Bytes bytes) throws IOException {
+        bytes.bytes += image.length();
+        return RiscVOpcodeScanner.scanMix(image, Runtime.getRuntime().availableProcessors(), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public long gzipRead(Bytes bytes) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream in = ImageHandler.openImageFile(gzipImage)) {
+            int length;
+            while ((length = ImageHandler.readFully(in, buffer)) > 0) {
+                total += length;
+            }
+        }
+        bytes.bytes += total;
+        return total;
+    }
+
+    @Benchmark
+    public void prepareImage(Bytes bytes) throws IOException {
+        ImageHandler.prepareImage(image, 0x80000000L, output, ImageHandler.Format.WORDS);
+        bytes.bytes += image.length();
+    }
+
+    @Benchmark
+    public long stitch(Bytes bytes) throws IOException {
+        bytes.bytes += image.length();
+        return StitchBinaries.stitch(layout, output);
+    }
+
+    @Benchmark
+    public int[] crc32cPages(Bytes bytes) {
+        bytes.bytes += mapped.limit();
+        return ImageChecksums.crc32cBlocks(mapped, DeltaUpload.DEFAULT_PAGE_SIZE);
+    }
+}
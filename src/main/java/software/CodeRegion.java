@@ -0,0 +1,23 @@
+package software;
+
+/**
+ * A range of an image file that holds code, and the address it is loaded at.
+ */
+public class CodeRegion {
+    public final String name;
+    public final long fileOffset;
+    public final long size;
+    public final long address;
+
+    public CodeRegion(String name, long fileOffset, long size, long address) {
+        this.name = name;
+        this.fileOffset = fileOffset;
+        this.size = size;
+        this.address = address;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s at 0x%08X (%d bytes)", name, address, size);
+    }
+}
@@ -0,0 +1,218 @@
+package software;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uploads only the pages of a stitched image that changed since the last upload.
+ * <p>
+ * The image is hashed per page with CRC32C and compared to a local manifest of the pages
+ * last loaded onto the board (next to the image, with the suffix ".loaded", for uploads over
+ * the serial port). Runs of changed pages are sent with all their words, zero words included,
+ * since they overwrite older contents. Without a usable manifest, e.g. after a power cycle, the
+ * whole image is sent as usual. The manifest is only updated after a successful upload.
+ * <p>
+ * Protocol bytes written to a file have not reached the board, so they are not recorded in the
+ * board's manifest. A file only gets a delta against a manifest of its own, given with
+ * --manifest, which assumes every file emitted with it is sent to the board in turn.
+ */
+public class DeltaUpload {
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    private static final String MANIFEST_SUFFIX = ".loaded";
+
+    /**
+     * Outcome of an upload
+     */
+    public static class Result {
+        public final int pages;
+        public final int changedPages;
+        public final long records;
+        public final boolean full;
+
+        Result(int pages, int changedPages, long records, boolean full) {
+            this.pages = pages;
+            this.changedPages = changedPages;
+            this.records = records;
+            this.full = full;
+        }
+    }
+
+    public static void main(String[] args) {
+        args = Metrics.init("DeltaUpload", args);
+        int pageSize = DEFAULT_PAGE_SIZE;
+        boolean full = false;
+        String emitFile = "delta.bin";
+        String manifestFile = null;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--page") && i + 1 < args.length) {
+                pageSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--full")) {
+                full = true;
+            } else if (args[i].equals("--emit") && i + 1 < args.length) {
+                emitFile = args[++i];
+            } else if (args[i].equals("--manifest") && i + 1 < args.length) {
+                manifestFile = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() > 2 || pageSize <= 0 || pageSize % 4 != 0) {
+            System.err.println("Usage: java DeltaUpload [--page <bytes>] [--full] [--emit <file>] [--manifest <file>] [--metrics <file>] [-q]");
+            System.err.println("                        [<stitched_output.bin> [<base-Address>]]");
+            System.err.println("  --page <bytes>  page size, a multiple of 4 (default " + DEFAULT_PAGE_SIZE + ")");
+            System.err.println("  --full          ignore the manifest and send the whole image");
+            System.err.println("  --emit <file>   file receiving the protocol bytes (default delta.bin)");
+            System.err.println("  --manifest <file>  pages the board holds once every file emitted with this manifest");
+            System.err.println("                  is sent, without it the whole image is emitted and nothing recorded");
+            System.err.println("Example: java DeltaUpload --manifest delta.loaded stitched_output.bin 0x0");
+            System.exit(1);
+        }
+
+        try {
+            Path image = Paths.get(files.size() > 0 ? files.get(0) : "stitched_output.bin");
+            long baseAddress = files.size() > 1
+                    ? Long.parseUnsignedLong(files.get(1).replace("_", "").replaceFirst("^0[xX]", ""), 16) : 0;
+            Path manifest = manifestFile != null ? Paths.get(manifestFile) : null;
+
+            Result result;
+            Metrics.Phase phase = Metrics.phase("upload");
+            try (FileUploadPort port = new FileUploadPort(Paths.get(emitFile)); phase) {
+                result = upload(image, baseAddress, pageSize, manifest, full, port, Uploader.consoleProgress());
+            }
+            Metrics.count("pages", result.pages);
+            Metrics.count("changed_pages", result.changedPages);
+            Metrics.count("records", result.records);
+            Metrics.info(String.format("%s: %d of %d pages changed, %d records written to %s",
+                    result.full ? "Full upload" : "Delta upload", result.changedPages, result.pages,
+                    result.records, emitFile));
+
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid base address format. Use 0x prefix for hex.");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Default manifest location of an image
+     */
+    public static Path manifestFor(Path image) {
+        return image.resolveSibling(image.getFileName() + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Send the changed pages of an image and the bootloader sleep command, then record the
+     * uploaded pages in the manifest
+     * @param image Stitched image
+     * @param baseAddress Address of the first byte of the image
+     * @param pageSize Page size in bytes, a multiple of 4
+     * @param manifest Manifest of the pages the receiver of the port holds, created or replaced once
+     *                 the bytes have left the host, null to send the whole image and record nothing
+     * @param full Send the whole image regardless of the manifest
+     * @param port Destination of the protocol bytes
+     * @param progress Progress listener, may be null
+     * @return Page and record counts
+     * @throws IOException If reading, sending or writing the manifest fails
+     */
+    public static Result upload(Path image, long baseAddress, int pageSize, Path manifest, boolean full,
+                                UploadPort port, Uploader.Progress progress) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int[] pages = ImageChecksums.crc32cBlocks(bytes, pageSize, Runtime.getRuntime().availableProcessors());
+            return upload(bytes, pages, baseAddress, pageSize, manifest, full, port, progress);
+        }
+    }
+
+    /**
+     * Send the changed pages of an image in memory whose pages are already hashed
+     * @param bytes Image bytes from position 0 to the limit
+     * @param pages CRC32C of every page of the image
+     * @see #upload(Path, long, int, Path, boolean, UploadPort, Uploader.Progress)
+     */
+    public static Result upload(ByteBuffer bytes, int[] pages, long baseAddress, int pageSize, Path manifest,
+                                boolean full, UploadPort port, Uploader.Progress progress) throws IOException {
+        int[] loaded = full || manifest == null ? null : readManifest(manifest, baseAddress, pageSize);
+
+        // Coalesce runs of changed pages into ranges
+        List<Long> ranges = new ArrayList<>();
+        int changed = 0;
+        for (int page = 0; page < pages.length; page++) {
+            if (loaded != null && page < loaded.length && loaded[page] == pages[page]) {
+                continue;
+            }
+            long from = (long) page * pageSize;
+            long to = Math.min(from + pageSize, bytes.limit());
+            if (!ranges.isEmpty() && ranges.get(ranges.size() - 1) == from) {
+                ranges.set(ranges.size() - 1, to);
+            } else {
+                ranges.add(from);
+                ranges.add(to);
+            }
+            changed++;
+        }
+        long[] rangeArray = new long[ranges.size()];
+        for (int i = 0; i < rangeArray.length; i++) {
+            rangeArray[i] = ranges.get(i);
+        }
+
+        Uploader uploader = new Uploader(port);
+        uploader.setProgress(progress);
+        uploader.setSendZeros(loaded != null);
+        long records = uploader.sendRanges(bytes, baseAddress, rangeArray);
+        uploader.sendSleep();
+
+        // sendSleep flushed the port, so the pages have left the host
+        if (manifest != null) {
+            writeManifest(manifest, baseAddress, pageSize, pages);
+        }
+        return new Result(pages.length, changed, records, loaded == null);
+    }
+
+    /**
+     * Read the page checksums of the last upload
+     * @return Checksums, or null if there is no manifest or it is for another base address or page size
+     */
+    static int[] readManifest(Path manifest, long baseAddress, int pageSize) throws IOException {
+        if (!Files.exists(manifest)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manifest)) {
+            String header = reader.readLine();
+            String expected = String.format("base 0x%08X page %d", baseAddress, pageSize);
+            if (header == null || !header.equals(expected)) {
+                return null;
+            }
+            int count = Integer.parseInt(reader.readLine().substring("pages ".length()));
+            int[] pages = new int[count];
+            for (int i = 0; i < count; i++) {
+                pages[i] = Integer.parseUnsignedInt(reader.readLine(), 16);
+            }
+            return pages;
+        } catch (NullPointerException | IndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Ignoring malformed manifest " + manifest);
+            return null;
+        }
+    }
+
+    /**
+     * Replace the manifest, written to a temporary file first so it is never left half written
+     */
+    static void writeManifest(Path manifest, long baseAddress, int pageSize, int[] pages) throws IOException {
+        Path temporary = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temporary))) {
+            writer.printf("base 0x%08X page %d%n", baseAddress, pageSize);
+            writer.println("pages " + pages.length);
+            for (int checksum : pages) {
+                writer.printf("%08X%n", checksum);
+            }
+        }
+        Files.move(temporary, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
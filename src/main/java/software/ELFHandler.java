@@ -1,103 +1,207 @@
-/*
-package Software;
+package software;
 
-import net.fornwall.jelf.*;
+import net.fornwall.jelf.ElfException;
+import net.fornwall.jelf.ElfFile;
+import net.fornwall.jelf.ElfSegment;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Loads the PT_LOAD segments of a RISC-V ELF file into a word-addressed {@link MemoryImage},
+ * the memory contents a loader would produce.
+ * <p>
+ * The file is memory mapped and only the ELF and program headers are parsed. Each segment is
+ * placed at its physical (load) address, its file bytes are bulk copied from the mapping and
+ * the remaining p_memsz - p_filesz bytes (.bss) are zero filled. Sections are not looked at,
+ * so the image does not depend on section names and nothing is formatted while loading.
+ * <p>
+ * The image is dense from the lowest to the highest load address, so segments far apart, e.g.
+ * a ROM at 0 and RAM at 0x80000000, exceed {@link #MAX_DENSE_SPAN}. Such files are loaded
+ * into a {@link SparseMemoryImage} with {@link #load(Path, SparseMemoryImage)} instead.
+ */
 public class ELFHandler {
-
-
-    //Possible bugs / Dont really know how supposed to handle:
-        // 1. What happens when a section does not have a size divisible by 4?
-        //      Eg. .rodata size is 14. How should the last 32bit data look? should it be XX000000 or 000000XX ?
-        // 2. Wrong fields included / Not enough fields included.
-        //      Currently both .init_array and .fini_array included - are these needed? Should hold instructions
-        //      For program to run before and after execution, however they cannot be translated to RISVC instructions
-        //      This leads me to believe they should be excluded.
-        //      The bss field does not have any data, it only reserves some addresses which should all be 0.
-        //      currently it does exactly this, fill the addresses with 0, however is it needed if we already do this?
-        //      Do we already do this?
+    private static final int EM_RISCV = 0xF3;
+    /** Largest address range a dense image is allocated for, in bytes */
+    public static final long MAX_DENSE_SPAN = 512L << 20;
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java ELFHandler <elf-file>");
-            return;
+        args = Metrics.init("ELFHandler", args);
+        ImageHandler.Format format = ImageHandler.parseFormat(args);
+        int first = ImageHandler.hasFormat(args) ? 2 : 0;
+        if (format == null || args.length - first < 1 || args.length - first > 2) {
+            System.out.println("Usage: java ELFHandler [--format words|sparse|blocks|ihex|readmemh] [--metrics <file>] [-q] <elf-file> [<output>]");
+            System.out.println("Writes the loaded memory image at its load addresses, to output.txt by default");
+            System.exit(1);
         }
 
-        String filePath = args[0];
+        String filePath = args[first];
+        Path outputFile = Paths.get(args.length - first > 1 ? args[first + 1] : "output.txt");
 
         try {
-            // Read ELF file into byte array
-            byte[] elfBytes = Files.readAllBytes(Paths.get(filePath));
-            ElfFile elf = ElfFile.from(elfBytes);
-
-            File outputFile = new File("output.txt");
-            FileOutputStream fos = new FileOutputStream(outputFile);
-
-            int numSections = elf.getSectionNameStringTable().numStrings;
-
-            for(int i = 0; i < numSections; i++){
-                ElfSection section = elf.getSection(i);
-                String name = section.header.getName();
-
-                // For why these sections have been selected see https://man7.org/linux/man-pages/man5/elf.5.html
-                // also see https://www.cs.cmu.edu/afs/cs/academic/class/15213-f00/docs/elf.pdf
-                // and lastly also see https://refspecs.linuxfoundation.org/LSB_3.1.1/LSB-Core-PPC64/LSB-Core-PPC64/specialsections.html
-                if(name != null && (name.equals(".text") | name.equals(".rodata") | name.equals(".bss") |
-                   name.equals(".sdata") | name.equals(".init_array") | name.equals(".fini_array") |
-                   name.equals(".data") | name.equals(".data1") | name.equals(".sbss") | name.equals(".rodata1"))){
-
-                    long offset = section.header.sh_offset;
-                    int size = (int) section.header.sh_size;
-                    int address = (int) section.header.sh_addr;
-                    byte[] data = section.getData();
-
-                    // Print the details about the section to the console
-                    System.out.println("Processing section: " + name);
-                    System.out.println("  Section located at offset: " + offset);
-                    System.out.println("  Section size: " + size + " bytes");
-                    System.out.println("  Expected number of output lines: " + (size / 4) + " lines");
-                    System.out.println("  STARTING WRITE AT: " + String.format("0x%08X", address));
-
-
-                    // Write data to output file in [address] [data] format
-                    for (int j = 0; j < size; j += 4) {
-                        // Format address as a 32-bit hexadecimal value
-                        String hexAddress = String.format("0x%08X", address + j);
-
-                        // Format the 4 bytes of data as a 32-bit hexadecimal value
-                        int dataValue = 0;
-                        for (int k = 0; k < 4 && j + k < data.length; k++) {
-                            dataValue |= (data[j + k] & 0xFF) << (8 * k); // Shift each byte into its correct position
-                        }
-
-                        String hexData = String.format("%08X", dataValue); // Format as 32-bit hex
-
-                        // Prepare the output line
-                        String outputLine = hexAddress + " " + hexData;
-
-                        // Write to output file (only the actual data)
-                        fos.write(outputLine.getBytes());
-                        fos.write("\n".getBytes());
-
-                        // Print to the console
-                        System.out.println(outputLine);
-                    }
-                    System.out.println("Finished processing section: " + name + "\n");
-                }
-            }
+            MemoryImage image = Metrics.time("load", () -> load(Paths.get(filePath)));
+            Metrics.count("loaded_bytes", image.getEndAddress() - image.getBaseAddress());
+            Metrics.info(String.format("Loaded 0x%08X - 0x%08X, entry 0x%08X",
+                    image.getBaseAddress(), image.getEndAddress(), image.getEntry()));
 
-            fos.close();
-            System.out.println("Data extraction complete. Output written to output.txt");
+            Metrics.run("prepare", () -> ImageHandler.prepareImage(image, outputFile, format));
+            Metrics.info("Data extraction complete. Output written to " + outputFile);
 
         } catch (IOException e) {
             System.err.println("Error reading ELF file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Load the PT_LOAD segments of an ELF file
+     * @param file RISC-V ELF file
+     * @return Memory image from the lowest to the highest loaded address
+     * @throws IOException If the file cannot be read, is not an RV32 ELF file, has no loadable segment
+     *                     or its segments span more than {@link #MAX_DENSE_SPAN}
+     */
+    public static MemoryImage load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ElfFile elf = parse(file, mapped);
+
+            // jelf sign-extends the 32-bit fields of ELF32 files
+            long mask = 0xFFFFFFFFL;
+            long low = Long.MAX_VALUE;
+            long high = Long.MIN_VALUE;
+            for (int i = 0; i < elf.e_phnum; i++) {
+                ElfSegment segment = elf.getProgramHeader(i);
+                if (segment.p_type == ElfSegment.PT_LOAD && segment.p_memsz > 0) {
+                    long address = segment.p_paddr & mask;
+                    low = Math.min(low, address);
+                    high = Math.max(high, address + (segment.p_memsz & mask));
+                }
+            }
+            if (low > high) {
+                throw new IOException(file + " has no loadable segments");
+            }
+            low &= ~3L;
+            high = (high + 3) & ~3L;
+            if (high - low > MAX_DENSE_SPAN) {
+                throw new IOException(String.format("%s spans 0x%X - 0x%X, more than a dense image of %d MB holds",
+                        file, low, high, MAX_DENSE_SPAN >> 20));
+            }
+
+            int[] words = new int[(int) ((high - low) / 4)];
+            for (int i = 0; i < elf.e_phnum; i++) {
+                ElfSegment segment = elf.getProgramHeader(i);
+                if (segment.p_type != ElfSegment.PT_LOAD || segment.p_memsz == 0) {
+                    continue;
+                }
+                long offset = (segment.p_paddr & mask) - low;
+                long fileSize = segment.p_filesz & mask;
+                long memorySize = segment.p_memsz & mask;
+                if (fileSize > memorySize || (segment.p_offset & mask) + fileSize > channel.size()) {
+                    throw new IOException(file + ": PT_LOAD[" + i + "] is truncated");
+                }
+                copy(mapped.slice((int) (segment.p_offset & mask), (int) fileSize), words, offset);
+                fill(words, offset + fileSize, memorySize - fileSize);
+            }
+            return new MemoryImage(low, words, elf.e_entry & mask);
         }
     }
+
+    /**
+     * Load the PT_LOAD segments of an ELF file into memory at their physical addresses, without
+     * a dense copy of the address range in between
+     * @param file RISC-V ELF file
+     * @param memory Memory to load into
+     * @return Entry point
+     * @throws IOException If the file cannot be read, is not an RV32 ELF file or a segment is outside the memory
+     */
+    public static long load(Path file, SparseMemoryImage memory) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ElfFile elf = parse(file, mapped);
+
+            long mask = 0xFFFFFFFFL;
+            for (int i = 0; i < elf.e_phnum; i++) {
+                ElfSegment segment = elf.getProgramHeader(i);
+                if (segment.p_type != ElfSegment.PT_LOAD || segment.p_memsz == 0) {
+                    continue;
+                }
+                long address = segment.p_paddr & mask;
+                long fileSize = segment.p_filesz & mask;
+                long memorySize = segment.p_memsz & mask;
+                if (fileSize > memorySize || (segment.p_offset & mask) + fileSize > channel.size()) {
+                    throw new IOException(file + ": PT_LOAD[" + i + "] is truncated");
+                }
+                if (address + memorySize > memory.getSize()) {
+                    throw new IOException(String.format("%s: PT_LOAD[%d] at 0x%X is outside the memory", file, i, address));
+                }
+                memory.load(address, mapped.slice((int) (segment.p_offset & mask), (int) fileSize));
+                memory.fill(address + fileSize, memorySize - fileSize, (byte) 0);
+            }
+            return elf.e_entry & mask;
+        }
+    }
+
+    private static ElfFile parse(Path file, MappedByteBuffer mapped) throws IOException {
+        ElfFile elf;
+        try {
+            elf = ElfFile.from(mapped);
+        } catch (ElfException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        }
+        if (!elf.is32Bits() || elf.e_machine != EM_RISCV) {
+            throw new IOException(file + " is not an RV32 RISC-V executable");
+        }
+        return elf;
+    }
+
+    /**
+     * Copy bytes into little endian words
+     * @param source Bytes to copy
+     * @param words Destination words
+     * @param byteOffset Byte offset of the first byte within the words
+     */
+    static void copy(ByteBuffer source, int[] words, long byteOffset) {
+        int length = source.remaining();
+        int i = 0;
+        for (; i < length && ((byteOffset + i) & 3) != 0; i++) {
+            putByte(words, byteOffset + i, source.get(i));
+        }
+        int bulk = (length - i) & ~3;
+        source.slice(i, bulk).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+                .get(words, (int) ((byteOffset + i) >>> 2), bulk >>> 2);
+        for (i += bulk; i < length; i++) {
+            putByte(words, byteOffset + i, source.get(i));
+        }
+    }
+
+    /**
+     * Zero a byte range of little endian words
+     */
+    static void fill(int[] words, long byteOffset, long length) {
+        long end = byteOffset + length;
+        for (; byteOffset < end && (byteOffset & 3) != 0; byteOffset++) {
+            putByte(words, byteOffset, (byte) 0);
+        }
+        int fromWord = (int) (byteOffset >>> 2);
+        int toWord = (int) (end >>> 2);
+        if (fromWord < toWord) {
+            Arrays.fill(words, fromWord, toWord, 0);
+        }
+        for (byteOffset = Math.max(byteOffset, (long) toWord << 2); byteOffset < end; byteOffset++) {
+            putByte(words, byteOffset, (byte) 0);
+        }
+    }
+
+    private static void putByte(int[] words, long byteOffset, byte value) {
+        int shift = (int) (byteOffset & 3) << 3;
+        int index = (int) (byteOffset >>> 2);
+        words[index] = (words[index] & ~(0xFF << shift)) | ((value & 0xFF) << shift);
+    }
 }
-*/
\ No newline at end of file
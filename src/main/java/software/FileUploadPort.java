@@ -0,0 +1,32 @@
+package software;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link UploadPort} that records the protocol bytes in a file, to be sent to the board later
+ */
+public class FileUploadPort implements UploadPort {
+    private final FileChannel channel;
+
+    public FileUploadPort(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer view = ByteBuffer.wrap(buffer, offset, length);
+        while (view.hasRemaining()) {
+            channel.write(view);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
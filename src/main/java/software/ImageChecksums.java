@@ -0,0 +1,112 @@
+package software;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of fixed-size blocks of an image. CRC32C.update(ByteBuffer) is
+ * intrinsified, so hashing runs at memory speed on mapped images, and runs of blocks are
+ * hashed on several cores when a parallelism is given.
+ */
+public final class ImageChecksums {
+    // Bytes hashed by one fork-join leaf task
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private ImageChecksums() {
+    }
+
+    /**
+     * @return Number of blocks of a size covering an image, the last one may be partial
+     */
+    public static int blockCount(long imageSize, int blockSize) {
+        return (int) ((imageSize + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Checksum every block of an image
+     * @param image Image bytes from position 0 to the limit
+     * @param blockSize Block size in bytes
+     * @return CRC32C per block
+     */
+    public static int[] crc32cBlocks(ByteBuffer image, int blockSize) {
+        int[] checksums = new int[blockCount(image.limit(), blockSize)];
+        CRC32C crc = new CRC32C();
+        for (int block = 0; block < checksums.length; block++) {
+            int from = block * blockSize;
+            crc.reset();
+            crc.update(image.slice(from, Math.min(blockSize, image.limit() - from)));
+            checksums[block] = (int) crc.getValue();
+        }
+        return checksums;
+    }
+
+    /**
+     * Checksum every block of an image, runs of blocks in parallel
+     * @param image Image bytes from position 0 to the limit
+     * @param blockSize Block size in bytes
+     * @param parallelism Number of worker threads, 1 hashes sequentially on the calling thread
+     * @return CRC32C per block
+     */
+    public static int[] crc32cBlocks(ByteBuffer image, int blockSize, int parallelism) {
+        if (parallelism <= 1) {
+            return crc32cBlocks(image, blockSize);
+        }
+        int[] checksums = new int[blockCount(image.limit(), blockSize)];
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new BlockTask(image, blockSize, checksums, 0, checksums.length));
+        } finally {
+            pool.shutdown();
+        }
+        return checksums;
+    }
+
+    /**
+     * @return CRC32C of the bytes from the position to the limit, the position is not changed
+     */
+    public static int crc32c(ByteBuffer bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Hashes a range of blocks, splitting it in halves until it covers about a chunk
+     */
+    private static class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer image;
+        private final int blockSize;
+        private final int[] checksums;
+        private final int fromBlock;
+        private final int toBlock;
+
+        BlockTask(ByteBuffer image, int blockSize, int[] checksums, int fromBlock, int toBlock) {
+            this.image = image;
+            this.blockSize = blockSize;
+            this.checksums = checksums;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBlock - fromBlock <= Math.max(1, CHUNK_BYTES / blockSize)) {
+                CRC32C crc = new CRC32C();
+                for (int block = fromBlock; block < toBlock; block++) {
+                    int from = block * blockSize;
+                    crc.reset();
+                    crc.update(image.slice(from, Math.min(blockSize, image.limit() - from)));
+                    checksums[block] = (int) crc.getValue();
+                }
+                return;
+            }
+            int middle = (fromBlock + toBlock) >>> 1;
+            invokeAll(new BlockTask(image, blockSize, checksums, fromBlock, middle),
+                    new BlockTask(image, blockSize, checksums, middle, toBlock));
+        }
+    }
+}
@@ -1,47 +1,78 @@
 package software;
 
 import java.io.*;
-import java.nio.file.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.zip.GZIPInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 
+/**
+ * Converts an image into "0xADDR 0xDATA" lines of little endian 32-bit words, or into one
+ * of the denser {@link Format}s that leave out the all-zero words.
+ * The image is streamed: it is read (and inflated) into one fixed buffer, formatted by hand
+ * into a second one and written through a FileChannel, so memory use does not depend on the
+ * image size and no per-word objects are created.
+ */
 public class ImageHandler {
+    // Input chunk, a multiple of 4 so that only the last chunk can end in a partial word
+    private static final int INPUT_BUFFER = 64 * 1024;
+    // Longest line: "0x" + 16 address digits + " 0x" + 8 data digits + "\n"
+    private static final int MAX_LINE = 2 + 16 + 3 + 8 + 1;
+    private static final int OUTPUT_BUFFER = INPUT_BUFFER / 4 * MAX_LINE;
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    /**
+     * Output formats, all list addresses and little endian 32-bit words
+     */
+    public enum Format {
+        WORDS,  // "0xADDR 0xDATA" for every word
+        SPARSE, // as WORDS, but without the all-zero words
+        BLOCKS, // "0xBASE N 0xDATA ..." per run of up to 256 contiguous words, zero stretches omitted
+        IHEX,    // Intel HEX with extended linear address records, zero words omitted
+        READMEMH // one hex word per line for $readmemh, zero stretches skipped with "@WORDINDEX" lines
+    }
+
     public static void main(String[] args) {
+        args = Metrics.init("ImageHandler", args);
+        Format format = parseFormat(args);
+        int first = hasFormat(args) ? 2 : 0;
+
         // Validate command-line arguments
-        if (args.length != 2) {
-            System.err.println("Usage: java ImageHandler <Image.bin.bin> <base-Address>");
+        if (format == null || args.length - first < 2 || args.length - first > 3) {
+            System.err.println("Usage: java ImageHandler [--format words|sparse|blocks|ihex|readmemh] [--metrics <file>] [-q]");
+            System.err.println("                         <Image.bin.bin> <base-Address> [<output>]");
+            System.err.println("  words   one \"0xADDR 0xDATA\" line per word (default)");
+            System.err.println("  sparse  as words, without the all-zero words");
+            System.err.println("  blocks  one \"0xBASE N 0xDATA ...\" line per run of non-zero words");
+            System.err.println("  ihex    Intel HEX, written to preparedImage.hex by default");
+            System.err.println("  readmemh one hex word per line for $readmemh, word indices count from the base address,");
+            System.err.println("           written to preparedImage.mem by default");
+            System.err.println("ELF input is loaded from its PT_LOAD segments and written at its load addresses,");
+            System.err.println("the base address is ignored for it.");
             System.err.println("Example: java ImageHandler kernel.bin 0x80000000");
             System.exit(1);
         }
 
         try {
             // Parse input arguments
-            File inputFile = new File(args[0]);
-            long baseAddress = parseHexAddress(args[1]);
-
-            // Read image file (with decompression support)
-            byte[] imageData = readImageFile(inputFile);
-
-            // Prepare output file
-            try (PrintWriter writer = new PrintWriter(new FileWriter("preparedImage.txt"))) {
-                // Process image data in 4-byte chunks
-                for (int offset = 0; offset < imageData.length; offset += 4) {
-                    // Ensure we have a full 4-byte chunk
-                    byte[] chunk = new byte[4];
-                    int bytesToCopy = Math.min(4, imageData.length - offset);
-                    System.arraycopy(imageData, offset, chunk, 0, bytesToCopy);
-
-                    // Convert chunk to 32-bit integer
-                    int value = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN).getInt();
-
-                    // Write address and data to file
-                    long currentAddress = baseAddress + offset;
-                    writer.printf("0x%08X 0x%08X\n", currentAddress, value);
+            File inputFile = new File(args[first]);
+            long baseAddress = parseHexAddress(args[first + 1]);
+            String outputFile = args.length - first > 2 ? args[first + 2] : defaultOutput(format);
+
+            if (isElf(inputFile)) {
+                // ELF files are written at their own load addresses
+                MemoryImage image = Metrics.time("load", () -> ELFHandler.load(inputFile.toPath()));
+                if (image.getBaseAddress() != baseAddress) {
+                    System.err.printf("Warning: %s is an ELF file, written at its load address 0x%08X instead of 0x%08X%n",
+                            inputFile, image.getBaseAddress(), baseAddress);
                 }
+                Metrics.run("prepare", () -> prepareImage(image, Paths.get(outputFile), format));
+            } else {
+                Metrics.run("prepare", () -> prepareImage(inputFile, baseAddress, Paths.get(outputFile), format));
             }
 
-            System.out.println("Image.bin.bin prepared successfully. Output written to preparedImage.txt");
+            Metrics.info("Image.bin.bin prepared successfully. Output written to " + outputFile);
 
         } catch (NumberFormatException e) {
             System.err.println("Invalid base address format. Use 0x prefix for hex.");
@@ -53,30 +84,473 @@ public class ImageHandler {
     }
 
     /**
-     * Read image file, handling both compressed and uncompressed files
+     * @return True if the arguments start with a --format option
+     */
+    static boolean hasFormat(String[] args) {
+        return args.length > 1 && args[0].equals("--format");
+    }
+
+    /**
+     * @return Format of a leading --format option, WORDS without it, null if the format is unknown
+     */
+    static Format parseFormat(String[] args) {
+        if (!hasFormat(args)) {
+            return Format.WORDS;
+        }
+        try {
+            return Format.valueOf(args[1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the 32-bit words of an image in an output format. A trailing partial word
+     * is zero padded.
      * @param inputFile Input file, potentially gzipped
-     * @return Byte array of the image data
-     * @throws IOException If there's an error reading the file
+     * @param baseAddress Address of the first byte of the image
+     * @param outputFile File to write
+     * @param format Output format
+     * @throws IOException If there's an error reading or writing
      */
-    private static byte[] readImageFile(File inputFile) throws IOException {
-        // Check if the file is gzipped
-        if (inputFile.getName().toLowerCase().endsWith(".gz")) {
-            try (GZIPInputStream gzis = new GZIPInputStream(new FileInputStream(inputFile));
-                 ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
+    public static void prepareImage(File inputFile, long baseAddress, Path outputFile, Format format) throws IOException {
+        byte[] input = new byte[INPUT_BUFFER];
+
+        try (InputStream in = openImageFile(inputFile);
+             FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Emitter emitter = createEmitter(format, channel);
+            long address = baseAddress;
+            int length;
+            while ((length = readFully(in, input)) > 0) {
+                // Zero pad a trailing partial word
+                int padded = (length + 3) & ~3;
+                for (int i = length; i < padded; i++) {
+                    input[i] = 0;
+                }
+
+                for (int offset = 0; offset < padded; offset += 4) {
+                    int value = (input[offset] & 0xFF) | (input[offset + 1] & 0xFF) << 8
+                            | (input[offset + 2] & 0xFF) << 16 | input[offset + 3] << 24;
+                    emitter.word(address, value);
+                    address += 4;
+                }
+            }
+            emitter.finish();
+            Metrics.count("words", (address - baseAddress) / 4);
+            Metrics.count("output_bytes", channel.size());
+        }
+    }
+
+    /**
+     * Write the 32-bit words of an image already in memory in an output format. A trailing
+     * partial word is zero padded.
+     * @param image Image bytes from position 0 to the limit
+     * @param baseAddress Address of the first byte of the image
+     * @param outputFile File to write
+     * @param format Output format
+     * @throws IOException If there's an error writing
+     */
+    public static void prepareImage(ByteBuffer image, long baseAddress, Path outputFile, Format format) throws IOException {
+        ByteBuffer words = image.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int limit = words.limit();
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Emitter emitter = createEmitter(format, channel);
+            int offset = 0;
+            for (; offset + 4 <= limit; offset += 4) {
+                emitter.word(baseAddress + offset, words.getInt(offset));
+            }
+            if (offset < limit) {
+                int value = 0;
+                for (int i = 0; offset + i < limit; i++) {
+                    value |= (words.get(offset + i) & 0xFF) << (i * 8);
+                }
+                emitter.word(baseAddress + offset, value);
+            }
+            emitter.finish();
+            Metrics.count("words", (limit + 3) / 4);
+            Metrics.count("output_bytes", channel.size());
+        }
+    }
+
+    /**
+     * Write the words of a loaded memory image in an output format
+     * @param image Memory image, e.g. from {@link ELFHandler#load}
+     * @param outputFile File to write
+     * @param format Output format
+     * @throws IOException If there's an error writing
+     */
+    public static void prepareImage(MemoryImage image, Path outputFile, Format format) throws IOException {
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Emitter emitter = createEmitter(format, channel);
+            int[] words = image.getWords();
+            long address = image.getBaseAddress();
+            for (int i = 0; i < words.length; i++, address += 4) {
+                emitter.word(address, words[i]);
+            }
+            emitter.finish();
+            Metrics.count("words", words.length);
+            Metrics.count("output_bytes", channel.size());
+        }
+    }
+
+    /**
+     * Write words as a $readmemh file, e.g. to preload a memory with loadMemoryFromFile
+     * @param words Words loaded from word index 0 on
+     * @param outputFile File to write
+     * @param sparse Skip stretches of zero words with "@WORDINDEX" lines, not every simulator reads them
+     * @throws IOException If there's an error writing
+     */
+    public static void writeReadmemh(int[] words, Path outputFile, boolean sparse) throws IOException {
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Emitter emitter = new ReadmemhEmitter(channel, sparse);
+            for (int i = 0; i < words.length; i++) {
+                emitter.word(4L * i, words[i]);
+            }
+            emitter.finish();
+        }
+    }
+
+    /**
+     * @return Output file used when none is given
+     */
+    public static String defaultOutput(Format format) {
+        switch (format) {
+            case IHEX: return "preparedImage.hex";
+            case READMEMH: return "preparedImage.mem";
+            default: return "preparedImage.txt";
+        }
+    }
+
+    static Emitter createEmitter(Format format, FileChannel channel) {
+        switch (format) {
+            case SPARSE: return new WordEmitter(channel, true);
+            case BLOCKS: return new BlockEmitter(channel);
+            case IHEX: return new IntelHexEmitter(channel);
+            case READMEMH: return new ReadmemhEmitter(channel, true);
+            default: return new WordEmitter(channel, false);
+        }
+    }
+
+    /**
+     * Formats words into a fixed buffer that is written to the channel whenever it fills up
+     */
+    abstract static class Emitter {
+        private final FileChannel channel;
+        final byte[] buffer = new byte[OUTPUT_BUFFER];
+        int position = 0;
+
+        Emitter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Make room for a number of bytes, at most the buffer size
+         */
+        void reserve(int length) throws IOException {
+            if (position + length > buffer.length) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            ByteBuffer view = ByteBuffer.wrap(buffer, 0, position);
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+            position = 0;
+        }
+
+        /**
+         * Emit the next word, words arrive in address order
+         */
+        abstract void word(long address, int value) throws IOException;
+
+        void finish() throws IOException {
+            flush();
+        }
+    }
+
+    static class WordEmitter extends Emitter {
+        private final boolean skipZeros;
+
+        WordEmitter(FileChannel channel, boolean skipZeros) {
+            super(channel);
+            this.skipZeros = skipZeros;
+        }
+
+        @Override
+        void word(long address, int value) throws IOException {
+            if (value != 0 || !skipZeros) {
+                reserve(MAX_LINE);
+                position = formatLine(buffer, position, address, value);
+            }
+        }
+    }
 
-                int nRead;
-                byte[] data = new byte[1024];
-                while ((nRead = gzis.read(data, 0, data.length)) != -1) {
-                    buffer.write(data, 0, nRead);
+    static class BlockEmitter extends Emitter {
+        private static final int MAX_BLOCK_WORDS = 256;
+        // A single zero word is cheaper inside a block than a new block header
+        private static final int MAX_ZERO_GAP = 1;
+
+        private final int[] words = new int[MAX_BLOCK_WORDS];
+        private int count = 0;
+        private long blockBase;
+        private int zeros = 0;
+
+        BlockEmitter(FileChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        void word(long address, int value) throws IOException {
+            if (value == 0) {
+                if (count > 0) {
+                    zeros++;
                 }
+                return;
+            }
+            if (count > 0 && (zeros > MAX_ZERO_GAP || count + zeros >= MAX_BLOCK_WORDS
+                    || address != blockBase + 4L * (count + zeros))) {
+                flushBlock();
+            }
+            if (count == 0) {
+                blockBase = address;
+                zeros = 0;
+            }
+            for (; zeros > 0; zeros--) {
+                words[count++] = 0;
+            }
+            words[count++] = value;
+        }
+
+        private void flushBlock() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            reserve(2 + 16 + 4 + count * 11 + 1);
+            buffer[position++] = '0';
+            buffer[position++] = 'x';
+            position = formatHex(buffer, position, blockBase, hexDigits(blockBase));
+            buffer[position++] = ' ';
+            position = formatDecimal(buffer, position, count);
+            for (int i = 0; i < count; i++) {
+                buffer[position++] = ' ';
+                buffer[position++] = '0';
+                buffer[position++] = 'x';
+                position = formatHex(buffer, position, words[i] & 0xFFFFFFFFL, 8);
+            }
+            buffer[position++] = '\n';
+            count = 0;
+            zeros = 0;
+        }
+
+        @Override
+        void finish() throws IOException {
+            flushBlock();
+            super.finish();
+        }
+    }
+
+    static class IntelHexEmitter extends Emitter {
+        private static final int RECORD_BYTES = 16;
+
+        private final byte[] record = new byte[RECORD_BYTES];
+        private int recordLength = 0;
+        private long recordAddress;
+        private long upperAddress = -1;
+
+        IntelHexEmitter(FileChannel channel) {
+            super(channel);
+        }
 
-                buffer.flush();
-                return buffer.toByteArray();
+        @Override
+        void word(long address, int value) throws IOException {
+            if (value == 0) {
+                return;
             }
+            if ((address + 3) >>> 32 != 0) {
+                throw new IOException("Intel HEX addresses are limited to 32 bits");
+            }
+            for (int i = 0; i < 4; i++) {
+                addByte(address + i, (byte) (value >>> (i * 8)));
+            }
+        }
+
+        private void addByte(long address, byte value) throws IOException {
+            if (recordLength > 0 && (recordLength == RECORD_BYTES || address != recordAddress + recordLength
+                    || address >>> 16 != recordAddress >>> 16)) {
+                flushRecord();
+            }
+            if (recordLength == 0) {
+                recordAddress = address;
+            }
+            record[recordLength++] = value;
+        }
+
+        private void flushRecord() throws IOException {
+            if (recordLength == 0) {
+                return;
+            }
+            reserve(2 * (1 + 2 * 5 + 2) + 2 * (5 + RECORD_BYTES) + 2);
+            if (recordAddress >>> 16 != upperAddress) {
+                upperAddress = recordAddress >>> 16;
+                record(0x04, 0, new byte[]{(byte) (upperAddress >>> 8), (byte) upperAddress}, 2);
+            }
+            record(0x00, (int) recordAddress & 0xFFFF, record, recordLength);
+            recordLength = 0;
+        }
+
+        /**
+         * Write ":LLAAAATT<data>CC"
+         */
+        private void record(int type, int address, byte[] data, int length) {
+            int checksum = length + (address >>> 8) + address + type;
+            buffer[position++] = ':';
+            position = formatHex(buffer, position, length, 2);
+            position = formatHex(buffer, position, address, 4);
+            position = formatHex(buffer, position, type, 2);
+            for (int i = 0; i < length; i++) {
+                position = formatHex(buffer, position, data[i], 2);
+                checksum += data[i];
+            }
+            position = formatHex(buffer, position, -checksum, 2);
+            buffer[position++] = '\n';
+        }
+
+        @Override
+        void finish() throws IOException {
+            flushRecord();
+            reserve(12);
+            record(0x01, 0, record, 0);
+            super.finish();
+        }
+    }
+
+    /**
+     * Writes "%08X" lines of the words, memory word 0 holds the word at the first address.
+     * When zeros are skipped, an "@%X" line with the word index of the next word follows every
+     * gap; a single zero word is written out, it is shorter than the address line.
+     */
+    static class ReadmemhEmitter extends Emitter {
+        private static final int MIN_GAP = 2;
+
+        private final boolean skipZeros;
+        private long baseAddress = -1;
+        // Word index the next line is loaded to
+        private long nextIndex = 0;
+
+        ReadmemhEmitter(FileChannel channel, boolean skipZeros) {
+            super(channel);
+            this.skipZeros = skipZeros;
+        }
+
+        @Override
+        void word(long address, int value) throws IOException {
+            if (baseAddress < 0) {
+                baseAddress = address;
+            }
+            if (value == 0 && skipZeros) {
+                return;
+            }
+            long index = (address - baseAddress) >>> 2;
+            reserve(2 * MAX_LINE);
+            if (index - nextIndex >= MIN_GAP) {
+                buffer[position++] = '@';
+                position = formatHex(buffer, position, index, hexDigits(index));
+                buffer[position++] = '\n';
+            } else if (index > nextIndex) {
+                position = formatHex(buffer, position, 0, 8);
+                buffer[position++] = '\n';
+            }
+            position = formatHex(buffer, position, value & 0xFFFFFFFFL, 8);
+            buffer[position++] = '\n';
+            nextIndex = index + 1;
+        }
+    }
+
+    /**
+     * Format "0x%08X 0x%08X\n" of an address and a word into a buffer
+     * @return Position after the line
+     */
+    static int formatLine(byte[] buffer, int position, long address, int value) {
+        buffer[position++] = '0';
+        buffer[position++] = 'x';
+        position = formatHex(buffer, position, address, hexDigits(address));
+        buffer[position++] = ' ';
+        buffer[position++] = '0';
+        buffer[position++] = 'x';
+        position = formatHex(buffer, position, value & 0xFFFFFFFFL, 8);
+        buffer[position++] = '\n';
+        return position;
+    }
+
+    /**
+     * @return Number of digits %08X prints for a long
+     */
+    static int hexDigits(long value) {
+        return Math.max(8, (64 - Long.numberOfLeadingZeros(value) + 3) >> 2);
+    }
+
+    static int formatDecimal(byte[] buffer, int position, int value) {
+        int end = position + 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            end++;
+        }
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    static int formatHex(byte[] buffer, int position, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[position + i] = HEX_DIGITS[(int) value & 0xF];
+            value >>>= 4;
+        }
+        return position + digits;
+    }
+
+    /**
+     * Open an image file, handling both compressed and uncompressed files
+     * @param inputFile Input file, potentially gzipped
+     * @return Stream of the image data
+     * @throws IOException If the file cannot be opened
+     */
+    static InputStream openImageFile(File inputFile) throws IOException {
+        // Check if the file is gzipped, members written by ParallelGzip are inflated on all cores
+        if (inputFile.getName().toLowerCase().endsWith(".gz")) {
+            return ParallelGzip.open(inputFile, Runtime.getRuntime().availableProcessors());
         } else {
-            // For uncompressed files, read directly
-            return Files.readAllBytes(inputFile.toPath());
+            return new FileInputStream(inputFile);
+        }
+    }
+
+    /**
+     * Check for the ELF magic number without touching the ELF classes, so that plain images
+     * can be converted without jelf on the class path
+     */
+    private static boolean isElf(File inputFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(inputFile))) {
+            return inputFile.length() >= 4 && in.readInt() == 0x7F454C46;
+        }
+    }
+
+    /**
+     * Fill a buffer unless the stream ends first
+     * @return Number of bytes read, 0 at the end of the stream
+     */
+    static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
         }
+        return length;
     }
 
     /**
@@ -89,4 +563,4 @@ public class ImageHandler {
         String cleanAddress = hexAddress.replace("_", "");
         return Long.parseUnsignedLong(cleanAddress.substring(2), 16);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,390 @@
+package software;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Integrity manifest of a stitched image: the CRC32C of every region the image was stitched
+ * from and of every fixed-size block, written next to the image as &lt;image&gt;.crc.
+ * <p>
+ * While the manifest is computed, every region is also checked against its input file, so a
+ * manifest only exists for an image that matches its inputs. Verifying hashes an image or a
+ * memory dump read back from the device block by block in parallel and names the blocks and
+ * regions that differ, so a failed boot can be traced to the corrupted blocks and only those
+ * re-sent instead of the whole image.
+ * <p>
+ * Text format: "size &lt;bytes&gt; block &lt;bytes&gt;", one "region 0xOFFSET SIZE CRC NAME" line per
+ * region, "blocks N" and one hex CRC per block.
+ */
+public class ImageManifest {
+    public static final String SUFFIX = ".crc";
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * A part of the image stitched from one input file
+     */
+    public static class Region {
+        public final String name;
+        public final long offset;
+        public final long size;
+        public final int crc;
+
+        public Region(String name, long offset, long size, int crc) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Outcome of a verification
+     */
+    public static class Result {
+        /** Blocks whose checksum differs */
+        public final BitSet badBlocks;
+        /** First block not fully covered by the verified data, the block count if all are */
+        public final int missingFrom;
+        public final int blocks;
+
+        Result(BitSet badBlocks, int missingFrom, int blocks) {
+            this.badBlocks = badBlocks;
+            this.missingFrom = missingFrom;
+            this.blocks = blocks;
+        }
+
+        public boolean isValid() {
+            return badBlocks.isEmpty() && missingFrom == blocks;
+        }
+    }
+
+    private final long size;
+    private final int blockSize;
+    private final List<Region> regions;
+    private final int[] blocks;
+
+    public ImageManifest(long size, int blockSize, List<Region> regions, int[] blocks) {
+        this.size = size;
+        this.blockSize = blockSize;
+        this.regions = regions;
+        this.blocks = blocks;
+    }
+
+    public static void main(String[] args) {
+        args = Metrics.init("ImageManifest", args);
+        boolean verify = false;
+        String layoutFile = null;
+        String manifestFile = null;
+        long dumpOffset = 0;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<String> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--verify")) {
+                    verify = true;
+                } else if (args[i].equals("--layout") && i + 1 < args.length) {
+                    layoutFile = args[++i];
+                } else if (args[i].equals("--manifest") && i + 1 < args.length) {
+                    manifestFile = args[++i];
+                } else if (args[i].equals("--offset") && i + 1 < args.length) {
+                    dumpOffset = StitchBinaries.parseNumber(args[++i]);
+                } else if (args[i].equals("--block") && i + 1 < args.length) {
+                    blockSize = (int) StitchBinaries.parseNumber(args[++i]);
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    parallelism = Integer.parseInt(args[++i]);
+                } else {
+                    files.add(args[i]);
+                }
+            }
+            if (files.size() > 1 || blockSize <= 0 || parallelism < 1 || dumpOffset < 0) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: java ImageManifest [--layout <manifest>] [--block <bytes>] [-j <threads>] [<stitched_output.bin>]");
+            System.err.println("       java ImageManifest --verify [--manifest <file>] [--offset <bytes>] [-j <threads>] <image|dump>");
+            System.err.println("  --layout    StitchBinaries layout the image was stitched from, default is the standard boot layout");
+            System.err.println("  --block     block size of the checksums (default " + DEFAULT_BLOCK_SIZE + ")");
+            System.err.println("  --verify    check an image or a memory dump read back from the device, exits with 2 on differences");
+            System.err.println("  --manifest  manifest to verify against, default <image>" + SUFFIX + " or stitched_output.bin" + SUFFIX);
+            System.err.println("  --offset    position of the image in the dump");
+            System.err.println("Example: java ImageManifest --verify --manifest stitched_output.bin.crc dump.bin");
+            System.exit(1);
+        }
+
+        try {
+            if (verify) {
+                Path data = Paths.get(files.isEmpty() ? "stitched_output.bin" : files.get(0));
+                Path manifestPath = manifestFile != null ? Paths.get(manifestFile)
+                        : Files.exists(manifestFor(data)) ? manifestFor(data) : Paths.get("stitched_output.bin" + SUFFIX);
+                ImageManifest manifest = read(manifestPath);
+                Result result;
+                Metrics.Phase phase = Metrics.phase("verify");
+                try (phase) {
+                    result = manifest.verify(data, dumpOffset, parallelism);
+                }
+                if (Metrics.isNormal()) {
+                    manifest.writeResult(result, new PrintWriter(System.out, true));
+                }
+                if (!result.isValid()) {
+                    System.exit(2);
+                }
+            } else {
+                Path image = Paths.get(files.isEmpty() ? "stitched_output.bin" : files.get(0));
+                List<StitchBinaries.Entry> layout = layoutFile != null
+                        ? StitchBinaries.parseManifest(Paths.get(layoutFile)) : StitchBinaries.defaultLayout();
+                Metrics.Phase phase = Metrics.phase("manifest");
+                try (phase) {
+                    create(image, layout, blockSize, parallelism);
+                }
+                Metrics.info("Manifest written to " + manifestFor(image));
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Default manifest location of an image
+     */
+    public static Path manifestFor(Path image) {
+        return image.resolveSibling(image.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Compute the manifest of a stitched image and write it next to the image
+     * @param image Stitched image
+     * @param layout Layout the image was stitched from
+     * @param blockSize Block size in bytes
+     * @param parallelism Number of worker threads
+     * @return The manifest written
+     * @throws IOException If the image cannot be read, does not match its inputs or the manifest cannot be written
+     */
+    public static ImageManifest create(Path image, List<StitchBinaries.Entry> layout, int blockSize, int parallelism)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            ImageManifest manifest = compute(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    layout, blockSize, parallelism);
+            manifest.write(manifestFor(image));
+            return manifest;
+        }
+    }
+
+    /**
+     * Checksum the blocks and regions of a stitched image in parallel. Every region is also
+     * compared to the input file it was stitched from.
+     * @param image Image bytes from position 0 to the limit
+     * @param layout Layout the image was stitched from, null for a single region covering the image
+     * @param blockSize Block size in bytes
+     * @param parallelism Number of worker threads
+     * @return Manifest of the image
+     * @throws IOException If an input file cannot be read or differs from its region
+     */
+    public static ImageManifest compute(ByteBuffer image, List<StitchBinaries.Entry> layout, int blockSize,
+                                        int parallelism) throws IOException {
+        return compute(image, layout, blockSize, ImageChecksums.crc32cBlocks(image, blockSize, parallelism), parallelism);
+    }
+
+    /**
+     * Build the manifest of a stitched image from block checksums computed before, e.g. for a
+     * delta upload
+     * @see #compute(ByteBuffer, List, int, int)
+     */
+    public static ImageManifest compute(ByteBuffer image, List<StitchBinaries.Entry> layout, int blockSize, int[] blocks,
+                                        int parallelism) throws IOException {
+        if (layout == null) {
+            List<Region> whole = new ArrayList<>();
+            whole.add(new Region("image", 0, image.limit(), ImageChecksums.crc32c(image.slice(0, image.limit()))));
+            return new ImageManifest(image.limit(), blockSize, whole, blocks);
+        }
+
+        List<StitchBinaries.Entry> sorted = StitchBinaries.resolveLayout(layout);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(sorted.size(), parallelism)));
+        try {
+            List<Future<Region>> tasks = new ArrayList<>();
+            for (StitchBinaries.Entry entry : sorted) {
+                tasks.add(executor.submit(() -> region(image, entry)));
+            }
+            List<Region> regions = new ArrayList<>();
+            for (Future<Region> task : tasks) {
+                regions.add(task.get());
+            }
+            return new ImageManifest(image.limit(), blockSize, regions, blocks);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Checksums interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Region region(ByteBuffer image, StitchBinaries.Entry entry) throws IOException {
+        if (entry.offset + entry.size > image.limit()) {
+            throw new IOException(entry + " lies beyond the end of the image");
+        }
+        int crc = ImageChecksums.crc32c(image.slice((int) entry.offset, (int) entry.size));
+        try (FileChannel in = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+            if (ImageChecksums.crc32c(in.map(FileChannel.MapMode.READ_ONLY, 0, entry.size)) != crc) {
+                throw new IOException(entry + " does not match its input file");
+            }
+        }
+        return new Region(entry.file.getFileName().toString(), entry.offset, entry.size, crc);
+    }
+
+    /**
+     * Check a file against the manifest
+     * @param data Image, or a memory dump holding the image
+     * @param offset Position of the image in the file
+     * @param parallelism Number of worker threads
+     * @return Blocks that differ or are missing
+     * @throws IOException If the file cannot be read
+     */
+    public Result verify(Path data, long offset, int parallelism) throws IOException {
+        try (FileChannel channel = FileChannel.open(data, StandardOpenOption.READ)) {
+            long length = Math.max(0, Math.min(size, channel.size() - offset));
+            return verify(channel.map(FileChannel.MapMode.READ_ONLY, Math.min(offset, channel.size()), length), parallelism);
+        }
+    }
+
+    /**
+     * Check bytes against the manifest, blocks beyond the end of the bytes count as missing
+     * @param data Image bytes from position 0 to the limit
+     * @param parallelism Number of worker threads
+     * @return Blocks that differ or are missing
+     */
+    public Result verify(ByteBuffer data, int parallelism) {
+        int length = (int) Math.min(size, data.limit());
+        // A partial block only counts if the image ends there
+        int complete = length == size ? blocks.length : length / blockSize;
+        int[] actual = ImageChecksums.crc32cBlocks(data.slice(0, Math.min(length, complete * blockSize)), blockSize,
+                parallelism);
+        BitSet bad = new BitSet(blocks.length);
+        for (int block = 0; block < complete; block++) {
+            if (actual[block] != blocks[block]) {
+                bad.set(block);
+            }
+        }
+        Metrics.count("verified_bytes", length);
+        return new Result(bad, complete, blocks.length);
+    }
+
+    /**
+     * Print the differing block ranges and the regions they fall into
+     */
+    public void writeResult(Result result, PrintWriter writer) {
+        int good = result.missingFrom - result.badBlocks.cardinality();
+        writer.printf("%d of %d blocks match%n", good, blocks.length);
+        for (int from = result.badBlocks.nextSetBit(0); from >= 0; ) {
+            int to = result.badBlocks.nextClearBit(from);
+            writer.printf("Differs 0x%08X-0x%08X (blocks %d-%d)%s%n", (long) from * blockSize,
+                    Math.min(size, (long) to * blockSize) - 1, from, to - 1, regionsOf(from, to));
+            from = result.badBlocks.nextSetBit(to);
+        }
+        if (result.missingFrom < blocks.length) {
+            writer.printf("Missing 0x%08X-0x%08X (blocks %d-%d)%s%n", (long) result.missingFrom * blockSize, size - 1,
+                    result.missingFrom, blocks.length - 1, regionsOf(result.missingFrom, blocks.length));
+        }
+        writer.flush();
+    }
+
+    private String regionsOf(int fromBlock, int toBlock) {
+        long from = (long) fromBlock * blockSize;
+        long to = (long) toBlock * blockSize;
+        StringBuilder names = new StringBuilder();
+        for (Region region : regions) {
+            if (region.offset < to && region.offset + region.size > from) {
+                names.append(names.length() == 0 ? " in " : ", ").append(region.name);
+            }
+        }
+        return names.toString();
+    }
+
+    /**
+     * Read a manifest
+     * @throws IOException If the file cannot be read or is not a manifest
+     */
+    public static ImageManifest read(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String[] header = reader.readLine().split(" ");
+            if (!header[0].equals("size") || !header[2].equals("block")) {
+                throw new IOException("Not an image manifest: " + file);
+            }
+            long size = Long.parseLong(header[1]);
+            int blockSize = Integer.parseInt(header[3]);
+            List<Region> regions = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()).startsWith("region ")) {
+                String[] fields = line.split(" ", 5);
+                regions.add(new Region(fields[4], Long.parseUnsignedLong(fields[1].substring(2), 16),
+                        Long.parseLong(fields[2]), Integer.parseUnsignedInt(fields[3], 16)));
+            }
+            int count = Integer.parseInt(line.substring("blocks ".length()));
+            if (count != ImageChecksums.blockCount(size, blockSize)) {
+                throw new IOException("Malformed image manifest: " + file);
+            }
+            int[] blocks = new int[count];
+            for (int i = 0; i < count; i++) {
+                blocks[i] = Integer.parseUnsignedInt(reader.readLine(), 16);
+            }
+            return new ImageManifest(size, blockSize, regions, blocks);
+        } catch (NullPointerException | IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("Malformed image manifest: " + file);
+        }
+    }
+
+    /**
+     * Replace a manifest file, written to a temporary file first so it is never left half written
+     */
+    public void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temporary))) {
+            writer.printf("size %d block %d%n", size, blockSize);
+            for (Region region : regions) {
+                writer.printf("region 0x%08X %d %08X %s%n", region.offset, region.size, region.crc, region.name);
+            }
+            writer.println("blocks " + blocks.length);
+            for (int checksum : blocks) {
+                writer.printf("%08X%n", checksum);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public List<Region> getRegions() {
+        return regions;
+    }
+
+    /**
+     * @return CRC32C per block, the backing array
+     */
+    public int[] getBlocks() {
+        return blocks;
+    }
+}
@@ -0,0 +1,170 @@
+package software;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * Static instruction mix of a range of an image, walked as a stream of 16/32-bit instructions.
+ * <p>
+ * Ranges can be walked independently in parallel, each starting at its first byte. Where the
+ * preceding range ends inside an instruction that start is wrong, {@link #append} then walks
+ * the correct path and the speculative path side by side, undoing the speculative instructions
+ * until both paths meet again. The instruction streams resynchronize after a few instructions,
+ * so the merged histogram equals a sequential walk at almost no extra cost.
+ */
+public class InstructionMix {
+    // Histogram indexed by class ordinal * 2, odd entries count compressed instructions
+    final long[] counts = new long[RiscVDecoder.NUM_INSTR_CLASSES * 2];
+
+    // Covered range and the position after the last instruction starting inside it
+    long start;
+    long end;
+    long endPosition;
+
+    InstructionMix(long start) {
+        this.start = start;
+        this.end = start;
+        this.endPosition = start;
+    }
+
+    /**
+     * Read the 16-bit parcel at a position. Parcels are taken from the containing 32-bit
+     * word in the byte order of the buffer, so word-swapped images decode correctly as well.
+     * @param buffer Image window, its limit a multiple of 4
+     * @param position Even byte position within the window
+     */
+    static int parcelAt(ByteBuffer buffer, int position) {
+        return (buffer.getInt(position & ~3) >>> ((position & 2) << 3)) & 0xFFFF;
+    }
+
+    /**
+     * Decode the instruction at a position
+     * @return Class ordinal in the low byte, instruction length in bytes above it
+     */
+    static int decodeAt(ByteBuffer buffer, int position) {
+        int parcel = parcelAt(buffer, position);
+        int length = RiscVDecoder.instructionLength(parcel);
+        if (position + length > buffer.limit()) {
+            return RiscVDecoder.InstrClass.UNKNOWN.ordinal() | ((buffer.limit() - position) << 8);
+        }
+        int instrClass;
+        if (length == 2) {
+            instrClass = RiscVDecoder.classify16(parcel);
+        } else if (length == 4) {
+            instrClass = RiscVDecoder.classify32(parcel | (parcelAt(buffer, position + 2) << 16));
+        } else {
+            instrClass = RiscVDecoder.InstrClass.UNKNOWN.ordinal();
+        }
+        return instrClass | (length << 8);
+    }
+
+    private void count(int decoded, int delta) {
+        counts[((decoded & 0xFF) << 1) | ((decoded >>> 8) == 2 ? 1 : 0)] += delta;
+    }
+
+    /**
+     * Walk the instructions starting in [from, to) of a window
+     * @param buffer Image window
+     * @param baseAddress Address of the first byte of the window
+     * @param from First position to decode
+     * @param to End of the range, instructions starting before it may extend past it
+     */
+    static InstructionMix walk(ByteBuffer buffer, long baseAddress, int from, int to) {
+        InstructionMix mix = new InstructionMix(baseAddress + from);
+        int position = from;
+        while (position < to) {
+            int decoded = decodeAt(buffer, position);
+            mix.count(decoded, 1);
+            position += decoded >>> 8;
+        }
+        mix.end = baseAddress + to;
+        mix.endPosition = baseAddress + position;
+        return mix;
+    }
+
+    /**
+     * Append the mix of the directly following range, correcting its start if the last
+     * instruction of this range extends into it
+     * @param next Mix of the following range, walked from its start
+     * @param buffer Window containing the following range
+     * @param baseAddress Address of the first byte of that window
+     * @return This mix, now covering both ranges
+     */
+    InstructionMix append(InstructionMix next, ByteBuffer buffer, long baseAddress) {
+        long nextEnd = next.endPosition;
+        if (endPosition != next.start) {
+            int speculative = (int) (next.start - baseAddress);
+            int correct = (int) (endPosition - baseAddress);
+            int limit = (int) (next.end - baseAddress);
+            while (speculative != correct && (speculative < limit || correct < limit)) {
+                if (speculative < correct) {
+                    int decoded = decodeAt(buffer, speculative);
+                    next.count(decoded, -1);
+                    speculative += decoded >>> 8;
+                } else {
+                    int decoded = decodeAt(buffer, correct);
+                    next.count(decoded, 1);
+                    correct += decoded >>> 8;
+                }
+            }
+            if (speculative != correct) {
+                nextEnd = baseAddress + correct;
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += next.counts[i];
+        }
+        end = next.end;
+        endPosition = nextEnd;
+        return this;
+    }
+
+    /**
+     * Add the mix of a separate, later range such as another code section
+     * @param other Mix of a range after this one
+     * @return This mix, now also counting the other range
+     */
+    InstructionMix add(InstructionMix other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        end = other.end;
+        endPosition = other.endPosition;
+        return this;
+    }
+
+    public long getCount(RiscVDecoder.InstrClass instrClass, boolean compressed) {
+        return counts[(instrClass.ordinal() << 1) | (compressed ? 1 : 0)];
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Write the instruction mix histogram
+     * @param writer Report destination
+     */
+    public void writeReport(PrintWriter writer) {
+        long total = getTotal();
+        long[] widthTotals = new long[2];
+
+        writer.println("=== RISC-V Instruction Mix ===");
+        writer.printf("Range\t0x%08X - 0x%08X%n", start, endPosition);
+        writer.println("\nInstruction Class\t32-bit\t16-bit\tTotal\tShare");
+        writer.println("-----------------\t------\t------\t-----\t-----");
+        for (RiscVDecoder.InstrClass instrClass : RiscVDecoder.INSTR_CLASSES) {
+            long full = getCount(instrClass, false);
+            long compressed = getCount(instrClass, true);
+            widthTotals[0] += full;
+            widthTotals[1] += compressed;
+            writer.printf("%s\t%d\t%d\t%d\t%.2f%%%n", instrClass, full, compressed, full + compressed,
+                    total == 0 ? 0.0 : 100.0 * (full + compressed) / total);
+        }
+        writer.printf("Total\t%d\t%d\t%d\t100.00%%%n", widthTotals[0], widthTotals[1], total);
+    }
+}
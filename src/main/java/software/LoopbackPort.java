@@ -0,0 +1,77 @@
+package software;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In-memory {@link UploadPort} to measure throughput and check the protocol without hardware.
+ * Either keeps all bytes written to it or only counts them. An optional baud rate throttles
+ * writes to the speed of a UART with 10 bits per byte.
+ */
+public class LoopbackPort implements UploadPort {
+    private final boolean keepData;
+    private final long baudRate;
+    private final long startNanos = System.nanoTime();
+    private byte[] data;
+    private long count = 0;
+    private int writes = 0;
+
+    /**
+     * @param keepData Whether to keep the written bytes, otherwise they are only counted
+     * @param baudRate Simulated UART speed, 0 for unthrottled
+     */
+    public LoopbackPort(boolean keepData, long baudRate) {
+        this.keepData = keepData;
+        this.baudRate = baudRate;
+        this.data = new byte[keepData ? 64 * 1024 : 0];
+    }
+
+    public LoopbackPort() {
+        this(true, 0);
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (keepData) {
+            if (count + length > data.length) {
+                if (count + length > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Loopback port is full");
+                }
+                data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(count + length, 2L * data.length)));
+            }
+            System.arraycopy(buffer, offset, data, (int) count, length);
+        }
+        count += length;
+        writes++;
+        if (baudRate > 0) {
+            long due = startNanos + count * 10 * 1_000_000_000L / baudRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Copy of the bytes written so far, empty if data is not kept
+     */
+    public synchronized byte[] toByteArray() {
+        return Arrays.copyOf(data, keepData ? (int) count : 0);
+    }
+
+    public synchronized long getByteCount() {
+        return count;
+    }
+
+    /**
+     * @return Number of write calls, i.e. of transfers a real port would have to make
+     */
+    public synchronized int getWriteCount() {
+        return writes;
+    }
+}
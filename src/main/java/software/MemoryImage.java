@@ -0,0 +1,48 @@
+package software;
+
+/**
+ * Contiguous, word-addressed memory contents starting at a base address, as produced by
+ * {@link ELFHandler}. Words hold the little endian memory bytes, word i is at
+ * base address + 4 * i.
+ */
+public class MemoryImage {
+    private final long baseAddress;
+    private final int[] words;
+    private final long entry;
+
+    public MemoryImage(long baseAddress, int[] words, long entry) {
+        this.baseAddress = baseAddress;
+        this.words = words;
+        this.entry = entry;
+    }
+
+    public long getBaseAddress() {
+        return baseAddress;
+    }
+
+    /**
+     * @return Address after the last word
+     */
+    public long getEndAddress() {
+        return baseAddress + 4L * words.length;
+    }
+
+    /**
+     * @return The backing array, not a copy
+     */
+    public int[] getWords() {
+        return words;
+    }
+
+    public int length() {
+        return words.length;
+    }
+
+    public int getWord(int i) {
+        return words[i];
+    }
+
+    public long getEntry() {
+        return entry;
+    }
+}
@@ -0,0 +1,324 @@
+package software;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Shared instrumentation of the software tools: phase timers, counters of the bytes, words and
+ * items processed, and the bytes allocated during each phase, written as a JSON report.
+ * <p>
+ * Every tool passes its arguments through {@link #init}, which takes out the common options:
+ * --metrics &lt;file&gt; enables the metrics and writes the report when the JVM exits, -v raises and
+ * -q lowers the verbosity. Tools time their phases with {@link #time} and {@link #run}. Without
+ * --metrics, {@link #phase} returns a shared no-op phase and {@link #count} returns after one
+ * field check, so the instrumentation can stay in the tools.
+ * <p>
+ * Allocation comes from com.sun.management.ThreadMXBean: the total of all threads on JVMs that
+ * report it (Java 21), otherwise the sum over the threads alive when the phase starts and ends.
+ * It is not split by thread, so phases running at the same time also see each other's allocation.
+ */
+public final class Metrics {
+    /** Errors only */
+    public static final int QUIET = 0;
+    /** Progress and result messages, the default */
+    public static final int NORMAL = 1;
+    /** Also every item, e.g. every CSR instruction found */
+    public static final int VERBOSE = 2;
+
+    private static int verbosity = NORMAL;
+    private static boolean enabled = false;
+
+    private static String tool;
+    private static long startNanos;
+    private static final Map<String, PhaseStats> phases = new LinkedHashMap<>();
+    private static final Map<String, Long> counters = new LinkedHashMap<>();
+
+    private static com.sun.management.ThreadMXBean threads;
+    private static Method totalAllocated;
+    private static final Map<Long, Long> threadAllocated = new HashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Work timed as a phase that returns a value
+     */
+    @FunctionalInterface
+    public interface Work<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * Work timed as a phase
+     */
+    @FunctionalInterface
+    public interface Action<E extends Exception> {
+        void run() throws E;
+    }
+
+    private static class PhaseStats {
+        int count;
+        long nanos;
+        long allocated;
+    }
+
+    /**
+     * A running phase, closing it adds its time and allocation to the phases of the same name
+     */
+    public static final class Phase implements AutoCloseable {
+        private static final Phase DISABLED = new Phase(null, 0, 0);
+
+        private final String name;
+        private final long start;
+        private final long allocated;
+
+        private Phase(String name, long start, long allocated) {
+            this.name = name;
+            this.start = start;
+            this.allocated = allocated;
+        }
+
+        @Override
+        public void close() {
+            if (name != null) {
+                long nanos = System.nanoTime() - start;
+                long allocatedBytes = allocatedBytes() - allocated;
+                synchronized (Metrics.class) {
+                    PhaseStats stats = phases.computeIfAbsent(name, k -> new PhaseStats());
+                    stats.count++;
+                    stats.nanos += nanos;
+                    stats.allocated += allocatedBytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the common options out of the arguments of a tool
+     * @param toolName Name in the report
+     * @param args Command line arguments
+     * @return The remaining arguments for the tool itself
+     */
+    public static String[] init(String toolName, String[] args) {
+        List<String> rest = new ArrayList<>();
+        String report = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--metrics") && i + 1 < args.length) {
+                report = args[++i];
+            } else if (args[i].equals("-v")) {
+                verbosity++;
+            } else if (args[i].equals("-q")) {
+                verbosity = QUIET;
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        if (report != null) {
+            enable(toolName);
+            String file = report;
+            // Also covers the tools leaving through System.exit
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    write(file);
+                } catch (IOException e) {
+                    System.err.println("Error writing metrics: " + e.getMessage());
+                }
+            }, "metrics-report"));
+        }
+        return rest.toArray(new String[0]);
+    }
+
+    /**
+     * Start collecting, e.g. for a tool called from another program
+     */
+    public static synchronized void enable(String toolName) {
+        tool = toolName;
+        startNanos = System.nanoTime();
+        phases.clear();
+        counters.clear();
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                try {
+                    totalAllocated = com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedBytes");
+                } catch (NoSuchMethodException e) {
+                    totalAllocated = null;
+                }
+            } else {
+                threads = null;
+            }
+        }
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static int getVerbosity() {
+        return verbosity;
+    }
+
+    public static void setVerbosity(int level) {
+        verbosity = level;
+    }
+
+    /**
+     * @return True if per-item output is wanted
+     */
+    public static boolean isVerbose() {
+        return verbosity >= VERBOSE;
+    }
+
+    /**
+     * @return True unless only errors are wanted
+     */
+    public static boolean isNormal() {
+        return verbosity >= NORMAL;
+    }
+
+    /**
+     * Print a progress or result message unless the tool runs quietly
+     */
+    public static void info(String message) {
+        if (verbosity >= NORMAL) {
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Time work as a phase
+     * @param name Phase name, phases of the same name are added up
+     * @param work Work to time
+     * @return Result of the work
+     * @throws E If the work fails, the phase still counts
+     */
+    public static <T, E extends Exception> T time(String name, Work<T, E> work) throws E {
+        Phase phase = phase(name);
+        try {
+            return work.run();
+        } finally {
+            phase.close();
+        }
+    }
+
+    /**
+     * Time work without a result as a phase
+     * @see #time(String, Work)
+     */
+    public static <E extends Exception> void run(String name, Action<E> action) throws E {
+        Phase phase = phase(name);
+        try {
+            action.run();
+        } finally {
+            phase.close();
+        }
+    }
+
+    /**
+     * Start a phase for code that does not fit in a lambda, e.g. code assigning to local variables:
+     * Metrics.Phase phase = Metrics.phase("scan"); try (phase) { ... }
+     * @param name Phase name, phases of the same name are added up
+     * @return Running phase, a shared no-op phase when the metrics are disabled
+     */
+    public static Phase phase(String name) {
+        if (!enabled) {
+            return Phase.DISABLED;
+        }
+        return new Phase(name, System.nanoTime(), allocatedBytes());
+    }
+
+    /**
+     * Add to a counter
+     * @param name Counter name, e.g. "input_bytes"
+     * @param value Amount to add
+     */
+    public static void count(String name, long value) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (Metrics.class) {
+            counters.merge(name, value, Long::sum);
+        }
+    }
+
+    /**
+     * @return Value of a counter, 0 if it was never counted
+     */
+    public static synchronized long getCounter(String name) {
+        return counters.getOrDefault(name, 0L);
+    }
+
+    private static synchronized long allocatedBytes() {
+        if (threads == null) {
+            return 0;
+        }
+        if (totalAllocated != null) {
+            try {
+                long total = (Long) totalAllocated.invoke(threads);
+                if (total >= 0) {
+                    return total;
+                }
+            } catch (ReflectiveOperationException e) {
+                totalAllocated = null;
+            }
+        }
+        // Threads that ended keep the last value seen of them
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] >= 0) {
+                threadAllocated.put(ids[i], allocated[i]);
+            }
+        }
+        long sum = 0;
+        for (long value : threadAllocated.values()) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Write the report collected so far
+     * @param file JSON file to create or replace
+     * @throws IOException If the file cannot be written
+     */
+    public static synchronized void write(String file) throws IOException {
+        long collections = 0;
+        long collectionMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionMillis += Math.max(0, collector.getCollectionTime());
+        }
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+            writer.println("{");
+            writer.printf("  \"tool\": \"%s\",%n", tool);
+            writer.printf(Locale.ROOT, "  \"wall_ms\": %.3f,%n", (System.nanoTime() - startNanos) / 1e6);
+            writer.printf("  \"allocated_bytes\": %d,%n", allocatedBytes());
+            writer.printf("  \"gc\": {\"collections\": %d, \"ms\": %d},%n", collections, collectionMillis);
+            writer.println("  \"phases\": [");
+            int i = 0;
+            for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+                PhaseStats stats = entry.getValue();
+                writer.printf(Locale.ROOT, "    {\"name\": \"%s\", \"count\": %d, \"ms\": %.3f, \"allocated_bytes\": %d}%s%n",
+                        entry.getKey(), stats.count, stats.nanos / 1e6, stats.allocated,
+                        ++i < phases.size() ? "," : "");
+            }
+            writer.println("  ],");
+            writer.println("  \"counters\": {");
+            i = 0;
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                writer.printf("    \"%s\": %d%s%n", entry.getKey(), entry.getValue(), ++i < counters.size() ? "," : "");
+            }
+            writer.println("  }");
+            writer.println("}");
+        }
+    }
+}
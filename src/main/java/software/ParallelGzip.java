@@ -0,0 +1,436 @@
+package software;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Block-parallel gzip with the JDK Deflater and Inflater.
+ * <p>
+ * The input is cut into blocks that are compressed independently on all cores, like pigz -i.
+ * Every block is a gzip member of its own, so the output is a standard multi-member gzip file
+ * that gunzip and GZIPInputStream read as usual. Each member carries an extra field (subfield
+ * "WC": member size and uncompressed size, little endian), like the block size of BGZF, so a
+ * reader can find the next member without inflating the current one and inflate the members
+ * in parallel. Files without these hints, e.g. from gzip itself, are inflated sequentially.
+ * <p>
+ * Both directions keep a bounded number of blocks in flight and write or return them in order,
+ * so memory use does not depend on the file size.
+ */
+public class ParallelGzip {
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private static final int HEADER_BYTES = 24;
+    private static final int TRAILER_BYTES = 8;
+    private static final int FEXTRA = 4;
+    private static final int FHCRC = 2;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final byte HINT_ID1 = 'W';
+    private static final byte HINT_ID2 = 'C';
+
+    public static void main(String[] args) {
+        args = Metrics.init("ParallelGzip", args);
+        boolean decompress = false;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        String input = null;
+        String output = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-d")) {
+                    decompress = true;
+                } else if (args[i].matches("-[1-9]")) {
+                    level = args[i].charAt(1) - '0';
+                } else if (args[i].equals("--block") && i + 1 < args.length) {
+                    blockSize = (int) StitchBinaries.parseNumber(args[++i]);
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    parallelism = Integer.parseInt(args[++i]);
+                } else if (input == null) {
+                    input = args[i];
+                } else if (output == null) {
+                    output = args[i];
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+            if (input == null || blockSize < 1 || parallelism < 1) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: java ParallelGzip [-d] [-1..-9] [--block <bytes>] [-j <threads>] [--metrics <file>] [-q] <input> [<output>]");
+            System.err.println("  -d       decompress, the output defaults to the input without .gz");
+            System.err.println("  -1..-9   compression level");
+            System.err.println("  --block  uncompressed bytes per gzip member (default 1M)");
+            System.err.println("Example: java ParallelGzip stitched_output.bin");
+            System.exit(1);
+        }
+
+        try {
+            Path in = Paths.get(input);
+            long start = System.nanoTime();
+            long size;
+            if (decompress) {
+                Path out = Paths.get(output != null ? output : input.replaceFirst("(?i)\\.gz$", "")
+                        + (input.toLowerCase().endsWith(".gz") ? "" : ".out"));
+                Metrics.Phase phase = Metrics.phase("decompress");
+                try (phase) {
+                    size = decompress(in, out, parallelism);
+                }
+                Metrics.count("input_bytes", Files.size(in));
+                Metrics.count("output_bytes", size);
+                output = out.toString();
+            } else {
+                Path out = Paths.get(output != null ? output : input + ".gz");
+                Metrics.Phase phase = Metrics.phase("compress");
+                try (phase) {
+                    size = compress(in, out, level, blockSize, parallelism);
+                }
+                Metrics.count("input_bytes", Files.size(in));
+                Metrics.count("output_bytes", size);
+                output = out.toString();
+            }
+            Metrics.info(String.format("%s written (%d bytes) in %.1f ms", output, size, (System.nanoTime() - start) / 1e6));
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compress a file
+     * @return Size of the compressed file
+     * @see #compress(ByteBuffer, Path, int, int, int)
+     */
+    public static long compress(Path input, Path output, int level, int blockSize, int parallelism) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(input + " is larger than 2 GB");
+            }
+            return compress(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), output, level,
+                    blockSize, parallelism);
+        }
+    }
+
+    /**
+     * Compress bytes into a multi-member gzip file, one member per block
+     * @param input Bytes from position 0 to the limit
+     * @param output File to create or replace
+     * @param level Deflate level, 1 to 9 or -1 for the default
+     * @param blockSize Uncompressed bytes per member
+     * @param parallelism Worker threads
+     * @return Size of the compressed file
+     * @throws IOException If the file cannot be written
+     */
+    public static long compress(ByteBuffer input, Path output, int level, int blockSize, int parallelism) throws IOException {
+        int limit = input.limit();
+        int blocks = Math.max(1, ImageChecksums.blockCount(limit, blockSize));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        long written = 0;
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int block = 0; block < blocks || !inFlight.isEmpty(); ) {
+                // Keep every worker busy with a few blocks queued behind it
+                while (block < blocks && inFlight.size() < parallelism * 2) {
+                    int from = block * blockSize;
+                    ByteBuffer slice = input.slice(from, Math.min(blockSize, limit - from));
+                    inFlight.add(executor.submit(() -> member(slice, deflaters.get())));
+                    block++;
+                }
+                ByteBuffer member = ByteBuffer.wrap(inFlight.remove().get());
+                while (member.hasRemaining()) {
+                    written += channel.write(member);
+                }
+            }
+            Metrics.count("members", blocks);
+        } catch (ExecutionException e) {
+            throw new IOException("Compressing failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compressing interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        return written;
+    }
+
+    /**
+     * Compress one block into a complete gzip member with the size hint
+     */
+    static byte[] member(ByteBuffer block, Deflater deflater) {
+        int length = block.remaining();
+        CRC32 crc = new CRC32();
+        crc.update(block.duplicate());
+
+        deflater.reset();
+        deflater.setInput(block.duplicate());
+        deflater.finish();
+        byte[] out = new byte[HEADER_BYTES + length + length / 1000 + 64 + TRAILER_BYTES];
+        int position = HEADER_BYTES;
+        while (!deflater.finished()) {
+            if (position == out.length - TRAILER_BYTES) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            position += deflater.deflate(out, position, out.length - TRAILER_BYTES - position);
+        }
+        int size = position + TRAILER_BYTES;
+
+        ByteBuffer header = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(0, (byte) 0x1F).put(1, (byte) 0x8B).put(2, (byte) 8).put(3, (byte) FEXTRA);
+        header.putInt(4, 0).put(8, (byte) 0).put(9, (byte) 255);
+        header.putShort(10, (short) 12).put(12, HINT_ID1).put(13, HINT_ID2).putShort(14, (short) 8);
+        header.putInt(16, size).putInt(20, length);
+        header.putInt(position, (int) crc.getValue()).putInt(position + 4, length);
+        return out.length == size ? out : Arrays.copyOf(out, size);
+    }
+
+    /**
+     * Decompress a gzip file
+     * @return Size of the decompressed file
+     * @throws IOException If the input is not gzip or the output cannot be written
+     */
+    public static long decompress(Path input, Path output, int parallelism) throws IOException {
+        byte[] buffer = new byte[DEFAULT_BLOCK_SIZE];
+        long written = 0;
+        try (InputStream in = open(input.toFile(), parallelism);
+             FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int length;
+            while ((length = ImageHandler.readFully(in, buffer)) > 0) {
+                ByteBuffer view = ByteBuffer.wrap(buffer, 0, length);
+                while (view.hasRemaining()) {
+                    written += channel.write(view);
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Open a gzip file for reading. Members with size hints are inflated in parallel ahead of
+     * the reader, from the first member without a hint on the file is inflated sequentially.
+     * @param file Gzip file, single or multi-member
+     * @param parallelism Worker threads
+     * @return Stream of the uncompressed bytes
+     * @throws IOException If the file cannot be opened
+     */
+    public static InputStream open(File file, int parallelism) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (hintedSize(channel, 0) < 0) {
+                return sequential(channel, 0);
+            }
+            return new ParallelInputStream(channel, parallelism);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static InputStream sequential(FileChannel channel, long position) throws IOException {
+        channel.position(position);
+        return new GZIPInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16), 1 << 16);
+    }
+
+    /**
+     * Read the size hint of the member at a position
+     * @return Member size in bytes, -1 if the member has no hint, 0 at the end of the file
+     */
+    static long hintedSize(FileChannel channel, long position) throws IOException {
+        if (position >= channel.size()) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+            // Fill the header, a short file simply has no hint
+        }
+        if (header.position() < HEADER_BYTES || header.get(0) != 0x1F || header.get(1) != (byte) 0x8B
+                || header.get(2) != 8 || (header.get(3) & FEXTRA) == 0 || header.getShort(10) < 12
+                || header.get(12) != HINT_ID1 || header.get(13) != HINT_ID2 || header.getShort(14) != 8) {
+            return -1;
+        }
+        return header.getInt(16) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Inflate one member read in full
+     * @return Uncompressed bytes, checked against the CRC32 and size of the trailer
+     */
+    static byte[] inflateMember(byte[] member, Inflater inflater) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(member).order(ByteOrder.LITTLE_ENDIAN);
+        int flags = member[3];
+        int position = 10;
+        if ((flags & FEXTRA) != 0) {
+            position += 2 + (buffer.getShort(10) & 0xFFFF);
+        }
+        if ((flags & FNAME) != 0) {
+            while (member[position++] != 0) {
+                // Skip the file name
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (member[position++] != 0) {
+                // Skip the comment
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            position += 2;
+        }
+        int expectedCrc = buffer.getInt(member.length - TRAILER_BYTES);
+        int size = buffer.getInt(member.length - 4);
+
+        byte[] out = new byte[size];
+        inflater.reset();
+        inflater.setInput(member, position, member.length - TRAILER_BYTES - position);
+        try {
+            int length = 0;
+            byte[] excess = new byte[1];
+            while (!inflater.finished()) {
+                // Past the expected size only the end of the stream may follow
+                int inflated = length < size ? inflater.inflate(out, length, size - length) : inflater.inflate(excess);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != size || !inflater.finished()) {
+                throw new IOException("Corrupt gzip member, size mismatch");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip member: " + e.getMessage());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Corrupt gzip member, CRC mismatch");
+        }
+        return out;
+    }
+
+    /**
+     * Returns the members in order while the following ones are inflated on the workers
+     */
+    private static class ParallelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final ExecutorService executor;
+        private final int lookahead;
+        private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+        private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        private long next = 0;          // Position of the next member to schedule
+        private boolean hinted = true;  // All members so far had hints
+        private InputStream rest;       // Sequential stream after the last hinted member
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        ParallelInputStream(FileChannel channel, int parallelism) {
+            this.channel = channel;
+            this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "gzip-inflater");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.lookahead = parallelism * 2;
+        }
+
+        private void schedule() throws IOException {
+            while (hinted && inFlight.size() < lookahead) {
+                long size = hintedSize(channel, next);
+                if (size <= 0) {
+                    hinted = false;
+                    break;
+                }
+                if (size < HEADER_BYTES + TRAILER_BYTES || next + size > channel.size()) {
+                    throw new IOException("Corrupt gzip size hint at " + next);
+                }
+                long from = next;
+                inFlight.add(executor.submit(() -> {
+                    byte[] member = new byte[(int) size];
+                    ByteBuffer buffer = ByteBuffer.wrap(member);
+                    while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0) {
+                        // Positional reads are safe from several threads
+                    }
+                    return inflateMember(member, inflaters.get());
+                }));
+                next += size;
+            }
+        }
+
+        // Make the current buffer non-empty, false at the end of the stream
+        private boolean fill() throws IOException {
+            while (position == current.length) {
+                if (rest != null) {
+                    return false;
+                }
+                schedule();
+                if (inFlight.isEmpty()) {
+                    if (next < channel.size()) {
+                        // Members without hints follow, e.g. appended by another tool
+                        rest = sequential(channel, next);
+                    }
+                    return false;
+                }
+                try {
+                    current = inFlight.remove().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Inflating interrupted");
+                }
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return rest != null ? rest.read() : -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return rest != null ? rest.read(buffer, offset, length) : -1;
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdownNow();
+            if (rest != null) {
+                rest.close();
+            }
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package software;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+
+/**
+ * Runs the whole host flow in one JVM: stitch the layout, then format, scan and checksum the
+ * stitched image concurrently, then upload it.
+ * <p>
+ * The stitched image is mapped once and handed to every stage as a buffer, so no stage reads
+ * another stage's text output. The files the separate tools write (stitched_output.bin,
+ * preparedImage.txt, csr_instructions.txt, the stitched_output.bin.crc checksums of
+ * {@link ImageManifest}) are still written for inspection, with --gzip the
+ * image and the prepared file also as block-parallel gzip archives. The upload records the
+ * protocol bytes in a file or, with --loopback, sends them to a loopback port.
+ * See the pipeline targets of the Makefile for an AppCDS archive that cuts the JVM start-up.
+ */
+public class Pipeline {
+
+    public static void main(String[] args) {
+        args = Metrics.init("Pipeline", args);
+        String layoutFile = null;
+        long baseAddress = 0;
+        ImageHandler.Format format = ImageHandler.Format.WORDS;
+        String uploadFile = null;
+        boolean loopback = false;
+        boolean delta = false;
+        boolean gzip = false;
+        ByteOrder byteOrder = RiscVOpcodeScanner.DEFAULT_BYTE_ORDER;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--layout") && i + 1 < args.length) {
+                    layoutFile = args[++i];
+                } else if (args[i].equals("--base") && i + 1 < args.length) {
+                    baseAddress = Long.parseUnsignedLong(args[++i].replace("_", "").replaceFirst("^0[xX]", ""), 16);
+                } else if (args[i].equals("--format") && i + 1 < args.length) {
+                    format = ImageHandler.Format.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("--upload") && i + 1 < args.length) {
+                    uploadFile = args[++i];
+                } else if (args[i].equals("--loopback")) {
+                    loopback = true;
+                } else if (args[i].equals("--delta")) {
+                    delta = true;
+                } else if (args[i].equals("--gzip")) {
+                    gzip = true;
+                } else if (args[i].equals("-le")) {
+                    byteOrder = ByteOrder.LITTLE_ENDIAN;
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    parallelism = Integer.parseInt(args[++i]);
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+            if (delta && uploadFile == null) {
+                throw new IllegalArgumentException("--delta");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: java Pipeline [--layout <manifest>] [--base <address>] [--format words|sparse|blocks|ihex|readmemh]");
+            System.err.println("                     [--upload <file> | --loopback] [--delta] [--gzip] [-le] [-j <threads>] [--metrics <file>] [-q]");
+            System.err.println("  --layout   StitchBinaries layout manifest, default is the standard boot layout");
+            System.err.println("  --base     load address of the stitched image (default 0x0)");
+            System.err.println("  --upload   write the upload protocol bytes to a file");
+            System.err.println("  --loopback upload into an in-memory loopback port");
+            System.err.println("  --delta    only upload the pages changed since the last --upload file, recorded in <file>.loaded");
+            System.err.println("  --gzip     also write block-parallel .gz copies of the image and the prepared file");
+            System.err.println("  -le        scan the image as little endian words, like RiscVOpcodeScanner -le (default: big endian)");
+            System.err.println("Example: java Pipeline --layout layout.txt --upload upload.bin --delta");
+            System.exit(1);
+        }
+
+        try {
+            List<StitchBinaries.Entry> layout = layoutFile != null
+                    ? StitchBinaries.parseManifest(Paths.get(layoutFile)) : StitchBinaries.defaultLayout();
+            UploadPort port = uploadFile != null ? new FileUploadPort(Paths.get(uploadFile))
+                    : loopback ? new LoopbackPort(false, 0) : null;
+            // The upload file has its own manifest, the board's <image>.loaded is only written by SendUART
+            Path uploadManifest = delta ? DeltaUpload.manifestFor(Paths.get(uploadFile)) : null;
+            try {
+                run(layout, Paths.get("stitched_output.bin"), baseAddress, format, byteOrder, parallelism, port,
+                        uploadManifest, gzip);
+            } finally {
+                if (port != null) {
+                    port.close();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run all stages
+     * @param layout Binaries to stitch
+     * @param stitched Stitched image to write
+     * @param baseAddress Load address of the stitched image
+     * @param format Format of preparedImage.txt
+     * @param byteOrder Byte order of the words the scan reads, as in {@link RiscVOpcodeScanner}
+     * @param parallelism Worker threads of the scan and the checksums
+     * @param port Upload destination, null to skip the upload
+     * @param uploadManifest Pages the receiver of the port holds, to upload only the changed pages, null to
+     *                       upload the whole image and record nothing
+     * @param gzip Write .gz copies of the stitched image and the prepared file with {@link ParallelGzip}
+     * @throws IOException If a stage fails
+     */
+    public static void run(List<StitchBinaries.Entry> layout, Path stitched, long baseAddress,
+                           ImageHandler.Format format, ByteOrder byteOrder, int parallelism, UploadPort port,
+                           Path uploadManifest, boolean gzip) throws IOException {
+        long start = System.nanoTime();
+        long size = Metrics.time("stitch", () -> StitchBinaries.stitch(layout, stitched));
+        report("stitch", start, size + " bytes into " + stitched);
+
+        Path prepared = Paths.get(ImageHandler.defaultOutput(format));
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try (FileChannel channel = FileChannel.open(stitched, StandardOpenOption.READ)) {
+            ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // The stages only read the image, each through its own view of the mapping
+            Future<?> formatStage = executor.submit(() -> {
+                long stageStart = System.nanoTime();
+                Metrics.run("format", () -> ImageHandler.prepareImage(image.duplicate(), baseAddress, prepared,
+                        format));
+                report("format", stageStart, prepared.toString());
+                return null;
+            });
+            Future<?> scanStage = executor.submit(() -> {
+                long stageStart = System.nanoTime();
+                ScanResult result = Metrics.time("scan", () -> {
+                    ScanResult scanned = RiscVOpcodeScanner.scanBuffer(image, baseAddress, parallelism, byteOrder);
+                    try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter("csr_instructions.txt")))) {
+                        RiscVOpcodeScanner.writeReport(scanned, image.limit() % 4 != 0, writer, Metrics.isVerbose());
+                    }
+                    return scanned;
+                });
+                report("scan", stageStart, (result.getKnownCount() + result.getUnknownCount())
+                        + " SYSTEM instructions, csr_instructions.txt");
+                return null;
+            });
+            Future<int[]> checksumStage = executor.submit(() -> {
+                long stageStart = System.nanoTime();
+                ImageManifest manifest = Metrics.time("checksum", () -> {
+                    // The page checksums of the delta upload double as the blocks of the manifest
+                    ImageManifest computed = ImageManifest.compute(image.duplicate(), layout,
+                            DeltaUpload.DEFAULT_PAGE_SIZE, parallelism);
+                    computed.write(ImageManifest.manifestFor(stitched));
+                    return computed;
+                });
+                report("checksum", stageStart, manifest.getBlocks().length + " pages, "
+                        + ImageManifest.manifestFor(stitched));
+                return manifest.getBlocks();
+            });
+
+            formatStage.get();
+            scanStage.get();
+            int[] pages = checksumStage.get();
+
+            if (port != null) {
+                long stageStart = System.nanoTime();
+                DeltaUpload.Result result = Metrics.time("upload", () -> DeltaUpload.upload(image.duplicate(), pages,
+                        baseAddress, DeltaUpload.DEFAULT_PAGE_SIZE, uploadManifest, false, port, null));
+                Metrics.count("records", result.records);
+                report("upload", stageStart, result.records + " records, " + result.changedPages + " of "
+                        + result.pages + " pages");
+            }
+
+            if (gzip) {
+                // Both archives are compressed on all cores, one after the other
+                long stageStart = System.nanoTime();
+                Path stitchedGz = Paths.get(stitched + ".gz");
+                Path preparedGz = Paths.get(prepared + ".gz");
+                long compressed = Metrics.time("gzip", () -> ParallelGzip.compress(image.duplicate(), stitchedGz,
+                        Deflater.DEFAULT_COMPRESSION, ParallelGzip.DEFAULT_BLOCK_SIZE, parallelism)
+                        + ParallelGzip.compress(prepared, preparedGz, Deflater.DEFAULT_COMPRESSION,
+                        ParallelGzip.DEFAULT_BLOCK_SIZE, parallelism));
+                report("gzip", stageStart, compressed + " bytes into " + stitchedGz + ", " + preparedGz);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipeline interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        report("total", start, "");
+    }
+
+    private static synchronized void report(String stage, long start, String detail) {
+        if (!Metrics.isNormal()) {
+            return;
+        }
+        System.out.printf("%-9s %8.1f ms  %s%n", stage, (System.nanoTime() - start) / 1e6, detail);
+    }
+}
@@ -0,0 +1,282 @@
+package software;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Predecoded form of every word of a loaded image, kept as a struct of arrays: the word itself,
+ * the packed opcode fields, the packed register numbers and the resolved immediate.
+ * <p>
+ * The sidecar is written by {@link RiscVOpcodeScanner} with --predecode and memory mapped by the
+ * ISA simulator, which dispatches on the packed fields instead of extracting them from every
+ * executed instruction. The ops are copied to the heap when the file is opened, so entries
+ * invalidated by stores into the code are only changed in the simulator's copy.
+ * <p>
+ * Layout, little endian: 32-byte header (magic, version, word count, reserved, base address),
+ * int[words] words, int[words] ops, int[words] registers, int[words] immediates.
+ * An op holds the major opcode in bits 0-6, the SRA/SUB flag in bit 7, funct3 in bits 8-10,
+ * funct7 in bits 16-22, the {@link RiscVDecoder.InstrClass} ordinal in bits 24-28 and the
+ * valid flag in bit 31. Registers hold rd, rs1 and rs2 in bits 0, 8 and 16.
+ */
+public class PredecodedImage {
+    private static final int MAGIC = 0x44505357; // "WSPD"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    public static final int VALID = 1 << 31;
+    private static final int ALT = 1 << 7;
+
+    private final long baseAddress;
+    private final int length;
+    private final IntBuffer words;
+    private final IntBuffer ops;
+    private final IntBuffer registers;
+    private final IntBuffer immediates;
+
+    private PredecodedImage(long baseAddress, int length, IntBuffer words, IntBuffer ops,
+                            IntBuffer registers, IntBuffer immediates) {
+        this.baseAddress = baseAddress;
+        this.length = length;
+        this.words = words;
+        this.ops = ops;
+        this.registers = registers;
+        this.immediates = immediates;
+    }
+
+    /**
+     * Predecode the words of an image
+     * @param image Image of 32-bit words from position 0 to the limit, a trailing partial word is ignored
+     * @param baseAddress Address of the first byte of the image
+     * @param byteOrder Byte order of the words in the image
+     * @return Predecoded image held on the heap
+     */
+    public static PredecodedImage decode(ByteBuffer image, long baseAddress, ByteOrder byteOrder) {
+        IntBuffer source = image.duplicate().order(byteOrder).asIntBuffer();
+        int[] words = new int[source.remaining()];
+        source.get(words);
+        return decode(words, baseAddress);
+    }
+
+    /**
+     * Predecode the words of an image
+     * @param words Image words
+     * @param baseAddress Address of words[0]
+     * @return Predecoded image held on the heap
+     */
+    public static PredecodedImage decode(int[] words, long baseAddress) {
+        int[] ops = new int[words.length];
+        int[] registers = new int[words.length];
+        int[] immediates = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            int instr = words[i];
+            ops[i] = op(instr);
+            registers[i] = registers(instr);
+            immediates[i] = immediate(instr);
+        }
+        return new PredecodedImage(baseAddress, words.length, IntBuffer.wrap(words), IntBuffer.wrap(ops),
+                IntBuffer.wrap(registers), IntBuffer.wrap(immediates));
+    }
+
+    /**
+     * Memory map a sidecar file
+     * @param file Sidecar written by {@link #write}
+     * @return Predecoded image backed by a read-only mapping of the file
+     * @throws IOException If the file cannot be read or is not a sidecar
+     */
+    public static PredecodedImage open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a predecoded image (version " + VERSION + ")");
+            }
+            int length = buffer.getInt(8);
+            if (channel.size() != HEADER_BYTES + 16L * length) {
+                throw new IOException("Predecoded image is truncated");
+            }
+            long baseAddress = buffer.getLong(16);
+            int[] ops = new int[length];
+            view(buffer, 1, length).get(ops);
+            return new PredecodedImage(baseAddress, length, view(buffer, 0, length), IntBuffer.wrap(ops),
+                    view(buffer, 2, length), view(buffer, 3, length));
+        }
+    }
+
+    private static IntBuffer view(ByteBuffer buffer, int array, int length) {
+        return buffer.slice(HEADER_BYTES + array * 4 * length, 4 * length).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * Write the sidecar file
+     * @param file Sidecar to create or replace
+     * @throws IOException If the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + 16L * length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, length).putLong(16, baseAddress);
+            view(buffer, 0, length).put(words.duplicate().clear());
+            view(buffer, 1, length).put(ops.duplicate().clear());
+            view(buffer, 2, length).put(registers.duplicate().clear());
+            view(buffer, 3, length).put(immediates.duplicate().clear());
+            buffer.force();
+        }
+    }
+
+    /**
+     * @return Packed opcode fields of an instruction
+     */
+    public static int op(int instr) {
+        int opcode = instr & 0x7F;
+        int funct3 = (instr >> 12) & 0x7;
+        int funct7 = instr >>> 25;
+        // SRA and SUB share funct3 with SRL and ADD, and SUB has no immediate form
+        boolean alt = funct7 == 0x20 && (opcode == 0x33 || (opcode == 0x13 && funct3 == 5));
+        return VALID | RiscVDecoder.classify32(instr) << 24 | funct7 << 16 | funct3 << 8 | (alt ? ALT : 0) | opcode;
+    }
+
+    /**
+     * @return Packed rd, rs1 and rs2 of an instruction
+     */
+    public static int registers(int instr) {
+        return (instr >> 7) & 0x1F | ((instr >> 15) & 0x1F) << 8 | ((instr >> 20) & 0x1F) << 16;
+    }
+
+    /**
+     * Resolve the immediate of an instruction according to its format
+     * @return Sign-extended immediate, 0 for R-type instructions
+     */
+    public static int immediate(int instr) {
+        switch (instr & 0x7F) {
+            case 0x13: case 0x03: case 0x67: case 0x73:
+                return instr >> 20;
+            case 0x23:
+                return (instr >> 25) << 5 | (instr >> 7) & 0x1F;
+            case 0x63:
+                return (instr >> 31) << 12 | ((instr >> 7) & 0x1) << 11 | ((instr >> 25) & 0x3F) << 5
+                        | ((instr >> 8) & 0xF) << 1;
+            case 0x37: case 0x17:
+                return instr & 0xFFFFF000;
+            case 0x6F:
+                return (instr >> 31) << 20 | instr & 0xFF000 | ((instr >> 20) & 0x1) << 11
+                        | ((instr >> 21) & 0x3FF) << 1;
+            default:
+                return 0;
+        }
+    }
+
+    public static int opcode(int op) {
+        return op & 0x7F;
+    }
+
+    public static boolean isAlt(int op) {
+        return (op & ALT) != 0;
+    }
+
+    public static int funct3(int op) {
+        return (op >> 8) & 0x7;
+    }
+
+    public static int funct7(int op) {
+        return (op >> 16) & 0x7F;
+    }
+
+    public static int instrClass(int op) {
+        return (op >> 24) & 0x1F;
+    }
+
+    public static int rd(int registers) {
+        return registers & 0x1F;
+    }
+
+    public static int rs1(int registers) {
+        return (registers >> 8) & 0x1F;
+    }
+
+    public static int rs2(int registers) {
+        return (registers >> 16) & 0x1F;
+    }
+
+    public long getBaseAddress() {
+        return baseAddress;
+    }
+
+    /**
+     * @return Number of words
+     */
+    public int length() {
+        return length;
+    }
+
+    public int getWord(int index) {
+        return words.get(index);
+    }
+
+    /**
+     * @return Packed opcode fields, without {@link #VALID} if the entry was invalidated
+     */
+    public int getOp(int index) {
+        return ops.get(index);
+    }
+
+    public int getRegisters(int index) {
+        return registers.get(index);
+    }
+
+    public int getImmediate(int index) {
+        return immediates.get(index);
+    }
+
+    /**
+     * Mark an entry as stale, e.g. after a store into the code
+     */
+    public void invalidate(int index) {
+        ops.put(index, ops.get(index) & ~VALID);
+    }
+
+    /**
+     * Invalidate every entry whose word differs from the memory the image is loaded into
+     * @param memory Memory holding the image at its base address
+     * @return Number of entries invalidated
+     */
+    public int invalidateChanged(SparseMemoryImage memory) {
+        int first = (int) (baseAddress >>> 2);
+        int changed = 0;
+        for (int i = 0; i < length; i++) {
+            long wordIndex = (long) first + i;
+            if (wordIndex >= memory.length() || memory.apply((int) wordIndex) != words.get(i)) {
+                invalidate(i);
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Check whether the image was predecoded with the wrong byte order, e.g. a raw image scanned
+     * without -le, which leaves only the words that read the same both ways matching the memory
+     * @param memory Memory holding the image at its base address
+     * @return Every word matches the memory with its bytes reversed, at least one only that way
+     */
+    public boolean isByteSwapped(SparseMemoryImage memory) {
+        int first = (int) (baseAddress >>> 2);
+        boolean swapped = false;
+        for (int i = 0; i < length; i++) {
+            long wordIndex = (long) first + i;
+            int word = words.get(i);
+            if (wordIndex >= memory.length() || memory.apply((int) wordIndex) != Integer.reverseBytes(word)) {
+                return false;
+            }
+            swapped |= word != Integer.reverseBytes(word);
+        }
+        return swapped;
+    }
+}
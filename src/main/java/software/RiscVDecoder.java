@@ -0,0 +1,370 @@
+package software;
+
+import java.util.Arrays;
+
+/**
+ * Table-driven decoding of RISC-V SYSTEM instructions and CSR addresses, plus length
+ * decoding and classification of all RV32IMAC instructions including compressed ones.
+ * Classification and CSR lookups are primitive array accesses that allocate nothing,
+ * strings are only built by {@link #describe(int)} and the name lookups when a report
+ * line is actually written. Kept free of scanner state so other tools can use it as well.
+ */
+public final class RiscVDecoder {
+
+    public static final int OPCODE_SYSTEM = 0x73;
+
+    /**
+     * Instruction classes of the SYSTEM opcode
+     */
+    public enum SystemOp {
+        ECALL, EBREAK, MRET, SRET, URET,
+        CSRRW, CSRRS, CSRRC, CSRRWI, CSRRSI, CSRRCI,
+        UNKNOWN_PRIVILEGED, // funct3 = 000 with an unknown immediate
+        UNKNOWN;            // reserved funct3 = 100
+
+        public boolean isUnknown() {
+            return this == UNKNOWN_PRIVILEGED || this == UNKNOWN;
+        }
+
+        public boolean isCSRAccess() {
+            return ordinal() >= CSRRW.ordinal() && ordinal() <= CSRRCI.ordinal();
+        }
+
+        /**
+         * @return Name used in the instruction type summary
+         */
+        public String typeName() {
+            return isUnknown() ? "Unknown SYSTEM" : name();
+        }
+    }
+
+    /**
+     * Instruction classes for the instruction mix, shared by 32-bit and compressed encodings
+     */
+    public enum InstrClass {
+        LOAD, STORE, BRANCH, JAL, JALR, LUI, AUIPC, ALU_IMM, ALU,
+        MUL, DIV,           // M extension
+        LR_SC, AMO,         // A extension
+        FENCE, FENCE_I, CSR,
+        SYSTEM,             // ECALL, EBREAK, xRET, WFI
+        FLOAT,              // F/D encodings, not part of RV32IMAC
+        ILLEGAL,            // all-zero parcel
+        UNKNOWN             // reserved, other extensions or cut off at the end of the image
+    }
+
+    public static final SystemOp[] SYSTEM_OPS = SystemOp.values();
+    public static final InstrClass[] INSTR_CLASSES = InstrClass.values();
+    public static final int NUM_INSTR_CLASSES = INSTR_CLASSES.length;
+    public static final int NUM_SYSTEM_OPS = SYSTEM_OPS.length;
+    public static final int NUM_CSRS = 4096;
+
+    // SYSTEM class by funct3, funct3 = 000 is refined by the immediate
+    private static final byte[] OP_BY_FUNCT3 = {
+            (byte) SystemOp.UNKNOWN_PRIVILEGED.ordinal(),
+            (byte) SystemOp.CSRRW.ordinal(),
+            (byte) SystemOp.CSRRS.ordinal(),
+            (byte) SystemOp.CSRRC.ordinal(),
+            (byte) SystemOp.UNKNOWN.ordinal(),
+            (byte) SystemOp.CSRRWI.ordinal(),
+            (byte) SystemOp.CSRRSI.ordinal(),
+            (byte) SystemOp.CSRRCI.ordinal()
+    };
+
+    // Index 0 of both name tables is used for unmapped addresses
+    private static final String[] PRIVILEGE_LEVELS = {
+            "Unknown",
+            "Unprivileged and User-Level",
+            "Supervisor-Level",
+            "Hypervisor and VS",
+            "Machine-Level"
+    };
+    private static final String[] ACCESSIBILITIES = {
+            "Unknown",
+            "Standard read/write",
+            "Custom read/write",
+            "Standard read-only",
+            "Custom read-only",
+            "Standard read/write/debug CSRs",
+            "Debug-mode-only CSRs"
+    };
+
+    // Privilege level and accessibility per 12-bit CSR address, as indices into the name tables
+    private static final byte[] csrPrivilege = new byte[NUM_CSRS];
+    private static final byte[] csrAccessibility = new byte[NUM_CSRS];
+
+    static {
+        initializeCSRTables();
+    }
+
+    private RiscVDecoder() {
+    }
+
+    /**
+     * Classify a SYSTEM instruction
+     * @param instr Instruction word, the opcode is expected to be SYSTEM
+     * @return Ordinal of the {@link SystemOp}
+     */
+    public static int systemOp(int instr) {
+        int funct3 = (instr >> 12) & 0x7;
+        if (funct3 != 0) {
+            return OP_BY_FUNCT3[funct3];
+        }
+        switch ((instr >> 20) & 0xFFF) {
+            case 0x000: return SystemOp.ECALL.ordinal();
+            case 0x001: return SystemOp.EBREAK.ordinal();
+            case 0x302: return SystemOp.MRET.ordinal();
+            case 0x102: return SystemOp.SRET.ordinal();
+            case 0x002: return SystemOp.URET.ordinal();
+            default: return SystemOp.UNKNOWN_PRIVILEGED.ordinal();
+        }
+    }
+
+    /**
+     * Length of an instruction from its first 16-bit parcel
+     * @param parcel Lowest 16 bits of the instruction
+     * @return Length in bytes, reserved long encodings are treated as a single parcel
+     */
+    public static int instructionLength(int parcel) {
+        if ((parcel & 0x03) != 0x03) {
+            return 2;
+        }
+        if ((parcel & 0x1C) != 0x1C) {
+            return 4;
+        }
+        if ((parcel & 0x3F) == 0x1F) {
+            return 6;
+        }
+        if ((parcel & 0x7F) == 0x3F) {
+            return 8;
+        }
+        int nnn = (parcel >> 12) & 0x7;
+        return nnn != 0x7 ? 10 + 2 * nnn : 2;
+    }
+
+    /**
+     * Classify a 32-bit instruction
+     * @param instr Instruction word
+     * @return Ordinal of the {@link InstrClass}
+     */
+    public static int classify32(int instr) {
+        int funct3 = (instr >> 12) & 0x7;
+        switch (instr & 0x7F) {
+            case 0x03: return funct3 != 3 && funct3 < 6 ? InstrClass.LOAD.ordinal() : InstrClass.UNKNOWN.ordinal();
+            case 0x23: return funct3 < 3 ? InstrClass.STORE.ordinal() : InstrClass.UNKNOWN.ordinal();
+            case 0x63: return funct3 != 2 && funct3 != 3 ? InstrClass.BRANCH.ordinal() : InstrClass.UNKNOWN.ordinal();
+            case 0x6F: return InstrClass.JAL.ordinal();
+            case 0x67: return funct3 == 0 ? InstrClass.JALR.ordinal() : InstrClass.UNKNOWN.ordinal();
+            case 0x37: return InstrClass.LUI.ordinal();
+            case 0x17: return InstrClass.AUIPC.ordinal();
+            case 0x13: return InstrClass.ALU_IMM.ordinal();
+            case 0x33: {
+                int funct7 = instr >>> 25;
+                if (funct7 == 0x01) {
+                    return funct3 < 4 ? InstrClass.MUL.ordinal() : InstrClass.DIV.ordinal();
+                }
+                return funct7 == 0x00 || funct7 == 0x20 ? InstrClass.ALU.ordinal() : InstrClass.UNKNOWN.ordinal();
+            }
+            case 0x2F: {
+                if (funct3 != 2) {
+                    return InstrClass.UNKNOWN.ordinal();
+                }
+                int funct5 = instr >>> 27;
+                if (funct5 == 0x02 || funct5 == 0x03) {
+                    return InstrClass.LR_SC.ordinal();
+                }
+                // AMOADD, AMOSWAP, AMOXOR, AMOOR, AMOAND, AMOMIN, AMOMAX, AMOMINU, AMOMAXU
+                return (funct5 & 0x03) == 0 || funct5 == 0x01 ? InstrClass.AMO.ordinal() : InstrClass.UNKNOWN.ordinal();
+            }
+            case 0x0F:
+                if (funct3 == 0) {
+                    return InstrClass.FENCE.ordinal();
+                }
+                return funct3 == 1 ? InstrClass.FENCE_I.ordinal() : InstrClass.UNKNOWN.ordinal();
+            case 0x73:
+                if (funct3 == 0) {
+                    return InstrClass.SYSTEM.ordinal();
+                }
+                return funct3 != 4 ? InstrClass.CSR.ordinal() : InstrClass.UNKNOWN.ordinal();
+            case 0x07: case 0x27: case 0x43: case 0x47: case 0x4B: case 0x4F: case 0x53:
+                return InstrClass.FLOAT.ordinal();
+            default:
+                return InstrClass.UNKNOWN.ordinal();
+        }
+    }
+
+    /**
+     * Classify a compressed (RVC) instruction, RV32 encodings
+     * @param parcel 16-bit instruction
+     * @return Ordinal of the {@link InstrClass}
+     */
+    public static int classify16(int parcel) {
+        parcel &= 0xFFFF;
+        if (parcel == 0) {
+            return InstrClass.ILLEGAL.ordinal();
+        }
+        int funct3 = parcel >> 13;
+        int rd = (parcel >> 7) & 0x1F;
+        int rs2 = (parcel >> 2) & 0x1F;
+        boolean bit12 = (parcel & 0x1000) != 0;
+        switch (parcel & 0x3) {
+            case 0: // quadrant 0: C.ADDI4SPN, C.LW, C.SW, FP loads/stores
+                switch (funct3) {
+                    case 0: return InstrClass.ALU_IMM.ordinal();
+                    case 2: return InstrClass.LOAD.ordinal();
+                    case 6: return InstrClass.STORE.ordinal();
+                    case 4: return InstrClass.UNKNOWN.ordinal();
+                    default: return InstrClass.FLOAT.ordinal();
+                }
+            case 1: // quadrant 1: immediates, jumps, branches, register ALU
+                switch (funct3) {
+                    case 0: case 2: return InstrClass.ALU_IMM.ordinal();       // C.ADDI, C.NOP, C.LI
+                    case 1: case 5: return InstrClass.JAL.ordinal();           // C.JAL, C.J
+                    case 3: return rd == 2 ? InstrClass.ALU_IMM.ordinal() : InstrClass.LUI.ordinal(); // C.ADDI16SP, C.LUI
+                    case 4:
+                        if (((parcel >> 10) & 0x3) != 0x3) {
+                            return InstrClass.ALU_IMM.ordinal();               // C.SRLI, C.SRAI, C.ANDI
+                        }
+                        return bit12 ? InstrClass.UNKNOWN.ordinal() : InstrClass.ALU.ordinal(); // C.SUB .. C.AND
+                    default: return InstrClass.BRANCH.ordinal();               // C.BEQZ, C.BNEZ
+                }
+            default: // quadrant 2: C.SLLI, stack loads/stores, C.JR, C.MV, C.EBREAK, C.JALR, C.ADD
+                switch (funct3) {
+                    case 0: return InstrClass.ALU_IMM.ordinal();
+                    case 2: return InstrClass.LOAD.ordinal();
+                    case 6: return InstrClass.STORE.ordinal();
+                    case 4:
+                        if (rs2 != 0) {
+                            return InstrClass.ALU.ordinal();
+                        }
+                        if (rd == 0) {
+                            return bit12 ? InstrClass.SYSTEM.ordinal() : InstrClass.UNKNOWN.ordinal();
+                        }
+                        return InstrClass.JALR.ordinal();
+                    default: return InstrClass.FLOAT.ordinal();
+                }
+        }
+    }
+
+    public static boolean isSystem(int instr) {
+        return (instr & 0x7F) == OPCODE_SYSTEM;
+    }
+
+    public static int csrAddress(int instr) {
+        return (instr >>> 20) & 0xFFF;
+    }
+
+    /**
+     * CSRRW/CSRRWI always write the CSR, the set/clear forms only with a non-zero rs1/uimm
+     * @param instr SYSTEM instruction word
+     * @return Whether the instruction writes its CSR
+     */
+    public static boolean writesCSR(int instr) {
+        int op = systemOp(instr);
+        if (op == SystemOp.CSRRW.ordinal() || op == SystemOp.CSRRWI.ordinal()) {
+            return true;
+        }
+        return SYSTEM_OPS[op].isCSRAccess() && ((instr >> 15) & 0x1F) != 0;
+    }
+
+    public static int privilegeIndex(int csrAddress) {
+        return csrPrivilege[csrAddress & 0xFFF];
+    }
+
+    public static int accessibilityIndex(int csrAddress) {
+        return csrAccessibility[csrAddress & 0xFFF];
+    }
+
+    public static String getPrivilegeLevel(int csrAddress) {
+        return PRIVILEGE_LEVELS[privilegeIndex(csrAddress)];
+    }
+
+    public static String getAccessibility(int csrAddress) {
+        return ACCESSIBILITIES[accessibilityIndex(csrAddress)];
+    }
+
+    /**
+     * CSRs with address bits [11:10] = 11 are read-only
+     */
+    public static boolean isReadOnlyCSR(int csrAddress) {
+        return (csrAddress & 0xC00) == 0xC00;
+    }
+
+    /**
+     * Human readable form of a SYSTEM instruction, as written to the scan report
+     * @param instr SYSTEM instruction word
+     * @return Decoded instruction
+     */
+    public static String describe(int instr) {
+        SystemOp op = SYSTEM_OPS[systemOp(instr)];
+        switch (op) {
+            case UNKNOWN_PRIVILEGED:
+                return String.format("Unknown SYSTEM (funct3=000, imm=0x%03X)", csrAddress(instr));
+            case UNKNOWN:
+                return "Unknown SYSTEM Instruction";
+            default:
+                if (!op.isCSRAccess()) {
+                    return op.name();
+                }
+                int rd = (instr >> 7) & 0x1F;
+                int rs1 = (instr >> 15) & 0x1F;
+                return String.format("%s (rd=x%d, csr=0x%03X, rs1/x=%d)", op.name(), rd, csrAddress(instr), rs1);
+        }
+    }
+
+    private static void initializeCSRTables() {
+        // Unprivileged and User-Level CSRs (00 00)
+        addCSRRange(0x000, 0x0FF, "Unprivileged and User-Level", "Standard read/write");
+        addCSRRange(0x400, 0x4FF, "Unprivileged and User-Level", "Standard read/write");
+        addCSRRange(0x800, 0x8FF, "Unprivileged and User-Level", "Custom read/write");
+        addCSRRange(0xC00, 0xC7F, "Unprivileged and User-Level", "Standard read-only");
+        addCSRRange(0xC80, 0xCBF, "Unprivileged and User-Level", "Standard read-only");
+        addCSRRange(0xCC0, 0xCFF, "Unprivileged and User-Level", "Custom read-only");
+
+        // Supervisor-Level CSRs (00 01)
+        addCSRRange(0x100, 0x1FF, "Supervisor-Level", "Standard read/write");
+        addCSRRange(0x500, 0x57F, "Supervisor-Level", "Standard read/write");
+        addCSRRange(0x580, 0x5BF, "Supervisor-Level", "Standard read/write");
+        addCSRRange(0x5C0, 0x5FF, "Supervisor-Level", "Custom read/write");
+        addCSRRange(0x900, 0x97F, "Supervisor-Level", "Standard read/write");
+        addCSRRange(0x980, 0x9BF, "Supervisor-Level", "Standard read/write");
+        addCSRRange(0x9C0, 0x9FF, "Supervisor-Level", "Custom read/write");
+        addCSRRange(0xD00, 0xD7F, "Supervisor-Level", "Standard read-only");
+        addCSRRange(0xD80, 0xDBF, "Supervisor-Level", "Standard read-only");
+        addCSRRange(0xDC0, 0xDFF, "Supervisor-Level", "Custom read-only");
+
+        // Hypervisor and VS CSRs (00 10)
+        addCSRRange(0x200, 0x2FF, "Hypervisor and VS", "Standard read/write");
+        addCSRRange(0x600, 0x67F, "Hypervisor and VS", "Standard read/write");
+        addCSRRange(0x680, 0x6BF, "Hypervisor and VS", "Standard read/write");
+        addCSRRange(0x6C0, 0x6FF, "Hypervisor and VS", "Custom read/write");
+        addCSRRange(0xA00, 0xA7F, "Hypervisor and VS", "Standard read/write");
+        addCSRRange(0xA80, 0xABF, "Hypervisor and VS", "Standard read/write");
+        addCSRRange(0xAC0, 0xAFF, "Hypervisor and VS", "Custom read/write");
+        addCSRRange(0xE00, 0xE7F, "Hypervisor and VS", "Standard read-only");
+        addCSRRange(0xE80, 0xEBF, "Hypervisor and VS", "Standard read/write");
+        addCSRRange(0xEC0, 0xEFF, "Hypervisor and VS", "Custom read/write");
+
+        // Machine-Level CSRs (00 11)
+        addCSRRange(0x300, 0x3FF, "Machine-Level", "Standard read/write");
+        addCSRRange(0x700, 0x77F, "Machine-Level", "Standard read/write");
+        addCSRRange(0x780, 0x79F, "Machine-Level", "Standard read/write");
+        addCSRRange(0x7A0, 0x7AF, "Machine-Level", "Standard read/write/debug CSRs");
+        addCSRRange(0x7B0, 0x7BF, "Machine-Level", "Debug-mode-only CSRs");
+        addCSRRange(0x7C0, 0x7FF, "Machine-Level", "Custom read/write");
+        addCSRRange(0xB00, 0xB7F, "Machine-Level", "Standard read/write");
+        addCSRRange(0xB80, 0xBBF, "Machine-Level", "Standard read/write");
+        addCSRRange(0xBC0, 0xBFF, "Machine-Level", "Custom read/write");
+        addCSRRange(0xF00, 0xF7F, "Machine-Level", "Standard read-only");
+        addCSRRange(0xF80, 0xFBF, "Machine-Level", "Standard read/write");
+        addCSRRange(0xFC0, 0xFFF, "Machine-Level", "Custom read/write");
+    }
+
+    private static void addCSRRange(int start, int end, String privilegeLevel, String accessibility) {
+        byte privilegeIndex = (byte) Arrays.asList(PRIVILEGE_LEVELS).indexOf(privilegeLevel);
+        byte accessibilityIndex = (byte) Arrays.asList(ACCESSIBILITIES).indexOf(accessibility);
+        for (int i = start; i <= end; i++) {
+            csrPrivilege[i] = privilegeIndex;
+            csrAccessibility[i] = accessibilityIndex;
+        }
+    }
+}
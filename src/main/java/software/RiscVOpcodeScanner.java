@@ -3,168 +3,618 @@ package software;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import net.fornwall.jelf.ElfFile;
+import net.fornwall.jelf.ElfSection;
+import net.fornwall.jelf.ElfSectionHeader;
+import net.fornwall.jelf.ElfSegment;
+
+/**
+ * Scans images for SYSTEM/CSR instructions or builds their instruction mix. A scanner holds its
+ * settings and worker pool, so one instance can scan many images, also from several threads at
+ * once as the batch mode of {@link ScanBatch} does. The static methods scan a single image with
+ * a scanner of their own.
+ */
+public class RiscVOpcodeScanner implements AutoCloseable {
+    // Words scanned by one fork-join leaf task (1 MB)
+    private static final int CHUNK_WORDS = 256 * 1024;
+    // Largest region mapped at once, FileChannel.map is limited to 2 GB per mapping
+    private static final long MAP_WINDOW = 1L << 30;
+    /** Byte order of raw images unless -le is given */
+    public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+
+    private final ByteOrder byteOrder;
+    private final boolean useSegments;
+    private final boolean verbose;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism Number of worker threads, 1 scans sequentially on the calling thread
+     * @param byteOrder Byte order of the words of raw images
+     * @param useSegments Scan executable PT_LOAD segments of ELF files instead of sections
+     * @param verbose Print the code regions of ELF files as they are scanned
+     */
+    public RiscVOpcodeScanner(int parallelism, ByteOrder byteOrder, boolean useSegments, boolean verbose) {
+        this.byteOrder = byteOrder;
+        this.useSegments = useSegments;
+        this.verbose = verbose;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
 
-public class RiscVOpcodeScanner {
-    // Maps for CSR privilege levels and accessibility
-    private static final Map<Integer, String> privilegeLevelMap = new HashMap<>();
-    private static final Map<Integer, String> accessibilityMap = new HashMap<>();
-
-    // Counters for summary
-    private static final Map<String, Integer> instructionTypeCounts = new HashMap<>();
-    private static final Map<Integer, Integer> csrAddressCounts = new HashMap<>();
-    private static final List<String> unknownSystemInstructions = new ArrayList<>();
-
-    static {
-        initializeCSRMaps();
+    public RiscVOpcodeScanner(int parallelism, ByteOrder byteOrder) {
+        this(parallelism, byteOrder, false, Metrics.isVerbose());
     }
 
     public static void main(String[] args) {
-        File file = new File("Image.bin.bin");
-        File outputFile = new File("csr_instructions.txt");
-
-        try (FileInputStream fis = new FileInputStream(file);
-             PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
-
-            byte[] buffer = new byte[4];
-            long offset = 0;
-            int bytesRead;
-
-            // Write header to the output file with tabs
-            writer.println("=== RISC-V System/CSR Instructions Scan Results ===");
-            writer.println("\n--- Known CSR Instructions ---");
-            writer.println("Offset\tInstruction\tDecoded Instruction\tPrivilege Level\tUse and Accessibility");
-            writer.println("----------\t----------\t------------------\t--------------\t-------------------");
-
-            while ((bytesRead = fis.read(buffer)) == 4) {
-                int instruction = ByteBuffer.wrap(buffer)
-                        .order(ByteOrder.BIG_ENDIAN)
-                        .getInt();
-
-                int opcode = instruction & 0x7F;
-
-                if (opcode == 0x73) {
-                    int funct3 = (instruction >> 12) & 0x7;
-                    String decoded = decodeSystemInstruction(instruction);
-
-                    // Process based on whether this is a known or unknown instruction
-                    if (decoded.startsWith("Unknown")) {
-                        // Just add to the unknown list for later printing
-                        unknownSystemInstructions.add(String.format("0x%08X\t0x%08X\t%s",
-                                offset, instruction, decoded));
-
-                        // Count the unknown type
-                        incrementInstructionTypeCount("Unknown SYSTEM");
-                    } else {
-                        // For known instructions, show detailed info
-                        int csrAddress = (instruction >> 20) & 0xFFF;
-                        String privilegeLevel = getPrivilegeLevel(csrAddress);
-                        String accessibility = getAccessibility(csrAddress);
-
-                        writer.printf("0x%08X\t0x%08X\t%s\t%s\t%s%n",
-                                offset, instruction, decoded, privilegeLevel, accessibility);
-
-                        System.out.printf("0x%08X: 0x%08X → %s | %s | %s%n",
-                                offset, instruction, decoded, privilegeLevel, accessibility);
-
-                        // Count the CSR address and instruction type
-                        incrementCSRCount(csrAddress);
-                        incrementInstructionTypeCount(getBaseInstructionType(decoded));
-                    }
-                }
+        args = Metrics.init("RiscVOpcodeScanner", args);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ByteOrder byteOrder = DEFAULT_BYTE_ORDER;
+        boolean mix = false;
+        boolean useSegments = false;
+        String indexFile = null;
+        String predecodeFile = null;
+        boolean batch = false;
+        String batchReport = "csr_matrix.txt";
+        int ioConcurrency = ScanBatch.DEFAULT_IO_CONCURRENCY;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j") && i + 1 < args.length) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-le")) {
+                byteOrder = ByteOrder.LITTLE_ENDIAN;
+            } else if (args[i].equals("--mix")) {
+                mix = true;
+            } else if (args[i].equals("--segments")) {
+                useSegments = true;
+            } else if (args[i].equals("--index") && i + 1 < args.length) {
+                indexFile = args[++i];
+            } else if (args[i].equals("--predecode") && i + 1 < args.length) {
+                predecodeFile = args[++i];
+            } else if (args[i].equals("--batch")) {
+                batch = true;
+            } else if (args[i].equals("--io") && i + 1 < args.length) {
+                ioConcurrency = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                batchReport = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (parallelism < 1 || ioConcurrency < 1 || (batch ? files.isEmpty() : files.size() > 2)) {
+            System.err.println("Usage: java RiscVOpcodeScanner [-j <threads>] [-le] [--mix] [--segments] [--index <file>] [--predecode <file>]");
+            System.err.println("                          [--metrics <file>] [-v | -q] [<Image.bin.bin> [<report>]]");
+            System.err.println("       java RiscVOpcodeScanner --batch [-j <threads>] [--io <files>] [-le] [--segments] <image|directory|@list>... [-o <report>]");
+            System.err.println("  -j <threads>  worker threads, 1 scans sequentially");
+            System.err.println("  -le           image words are little endian (default: big endian words)");
+            System.err.println("  --mix         write the full instruction mix instead of the CSR report");
+            System.err.println("  --segments    for ELF input, scan executable PT_LOAD segments instead of sections");
+            System.err.println("  --index <file> also write a binary index of the sites, queried with ScanIndex");
+            System.err.println("  --predecode <file> also write the predecoded words of the image for the ISA simulator");
+            System.err.println("  --batch       scan many images concurrently into an image x CSR matrix (default csr_matrix.txt),");
+            System.err.println("                directories are searched for ELF files and *.bin images, @list reads paths from a file");
+            System.err.println("  --io <files>  images read at the same time in batch mode (default " + ScanBatch.DEFAULT_IO_CONCURRENCY + ")");
+            System.err.println("  --metrics <file> write phase times, counters and allocation as JSON");
+            System.err.println("  -v / -q       also print every instruction found / print errors only");
+            System.err.println("ELF input is detected automatically, only its code is scanned and offsets are addresses.");
+            System.err.println("Example: java RiscVOpcodeScanner --mix -le Image.bin instruction_mix.txt");
+            System.exit(1);
+        }
 
-                offset += 4;
+        if (batch) {
+            try (RiscVOpcodeScanner scanner = new RiscVOpcodeScanner(parallelism, byteOrder, useSegments, false)) {
+                ScanBatch result;
+                Metrics.Phase phase = Metrics.phase("batch");
+                try (phase) {
+                    result = ScanBatch.scan(ScanBatch.collect(files), scanner, ioConcurrency);
+                }
+                File reportFile = new File(batchReport);
+                Metrics.run("report", () -> {
+                    try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)))) {
+                        result.writeReport(writer);
+                    }
+                });
+                Metrics.count("images", result.getImageCount());
+                Metrics.info(result.getImageCount() + " images scanned, " + result.getFailureCount() + " failed");
+                Metrics.info("Results written to " + reportFile.getAbsolutePath());
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(1);
             }
+            return;
+        }
 
-            // Print unknown system instructions
-            if (!unknownSystemInstructions.isEmpty()) {
-                writer.println("\n--- Unknown SYSTEM Instructions ---");
-                writer.println("Offset\tInstruction\tDecoded Instruction");
-                writer.println("----------\t----------\t------------------");
-                for (String unknownInstr : unknownSystemInstructions) {
-                    writer.println(unknownInstr);
+        File file = new File(files.size() > 0 ? files.get(0) : "Image.bin.bin");
+        File outputFile = new File(files.size() > 1 ? files.get(1) : mix ? "instruction_mix.txt" : "csr_instructions.txt");
+
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)));
+             RiscVOpcodeScanner scanner = new RiscVOpcodeScanner(parallelism, byteOrder, useSegments, Metrics.isVerbose())) {
+            boolean elf = isElf(file);
+            if (mix) {
+                InstructionMix result = Metrics.time("scan",
+                        () -> elf ? scanner.scanElfMix(file) : scanner.scanMix(file));
+                Metrics.run("report", () -> result.writeReport(writer));
+            } else {
+                ScanResult result = Metrics.time("scan", () -> elf ? scanner.scanElf(file) : scanner.scanFile(file));
+                boolean incompleteTail = !elf && file.length() % 4 != 0;
+                Metrics.run("report", () -> writeReport(result, incompleteTail, writer, Metrics.isVerbose()));
+                if (indexFile != null) {
+                    Path index = Paths.get(indexFile);
+                    Metrics.run("index", () -> ScanIndex.write(result, incompleteTail, index));
+                    Metrics.info("Index written to " + indexFile);
+                }
+            }
+            if (predecodeFile != null) {
+                Metrics.Phase phase = Metrics.phase("predecode");
+                try (phase) {
+                    writePredecoded(file, elf, byteOrder, Paths.get(predecodeFile));
                 }
+                Metrics.info("Predecoded image written to " + predecodeFile);
             }
+            Metrics.info("Results written to " + outputFile.getAbsolutePath());
+
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Scan a raw image for SYSTEM instructions. The file is memory mapped and split into
+     * word-aligned chunks that are scanned in parallel; any trailing partial word is ignored.
+     * @param file Image of 32-bit words, offsets start at 0
+     * @param parallelism Number of worker threads, 1 scans sequentially on the calling thread
+     * @param byteOrder Byte order of the words in the image
+     * @return Counters and instruction sites in offset order
+     * @throws IOException If the image cannot be read
+     */
+    public static ScanResult scanFile(File file, int parallelism, ByteOrder byteOrder) throws IOException {
+        try (RiscVOpcodeScanner scanner = new RiscVOpcodeScanner(parallelism, byteOrder)) {
+            return scanner.scanFile(file);
+        }
+    }
+
+    /**
+     * Scan a raw image for SYSTEM instructions, see {@link #scanFile(File, int, ByteOrder)}
+     * @param file Image of 32-bit words, offsets start at 0
+     * @return Counters and instruction sites in offset order
+     * @throws IOException If the image cannot be read
+     */
+    public ScanResult scanFile(File file) throws IOException {
+        ScanResult result = new ScanResult();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long wordBytes = channel.size() & ~3L;
+            for (long position = 0; position < wordBytes; position += MAP_WINDOW) {
+                long size = Math.min(MAP_WINDOW, wordBytes - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                buffer.order(byteOrder);
+
+                ScanTask task = new ScanTask(buffer, position, 0, (int) (size / 4));
+                result.append(pool != null ? pool.invoke(task) : task.scanRange());
+            }
+            Metrics.count("scanned_bytes", wordBytes);
+        }
+        Metrics.count("system_instructions", result.knownCount + result.unknownCount);
+        return result;
+    }
 
-            if (bytesRead != -1 && bytesRead != 4) {
-                String warning = "Warning: Incomplete instruction at end of file.";
-                System.err.println(warning);
-                writer.println("\n" + warning);
+    /**
+     * Scan an image already in memory, e.g. one handed over by another tool
+     * @param image Image of 32-bit words from position 0 to the limit, a trailing partial word is ignored
+     * @param baseAddress Address of the first byte of the image
+     * @param parallelism Number of worker threads, 1 scans sequentially on the calling thread
+     * @param byteOrder Byte order of the words in the image
+     * @return Counters and instruction sites in address order
+     */
+    public static ScanResult scanBuffer(ByteBuffer image, long baseAddress, int parallelism, ByteOrder byteOrder) {
+        try (RiscVOpcodeScanner scanner = new RiscVOpcodeScanner(parallelism, byteOrder)) {
+            return scanner.scanBuffer(image, baseAddress);
+        }
+    }
+
+    /**
+     * Scan an image already in memory
+     * @param image Image of 32-bit words from position 0 to the limit, a trailing partial word is ignored
+     * @param baseAddress Address of the first byte of the image
+     * @return Counters and instruction sites in address order
+     */
+    public ScanResult scanBuffer(ByteBuffer image, long baseAddress) {
+        ByteBuffer buffer = image.duplicate().order(byteOrder);
+        ScanTask task = new ScanTask(buffer, baseAddress, 0, buffer.limit() / 4);
+        ScanResult result = pool != null ? pool.invoke(task) : task.scanRange();
+        Metrics.count("scanned_bytes", buffer.limit() & ~3L);
+        Metrics.count("system_instructions", result.knownCount + result.unknownCount);
+        return result;
+    }
+
+    /**
+     * Scan an ELF file or a raw image, whichever the file is
+     * @param file ELF file or raw image
+     * @return Counters and instruction sites in address order
+     * @throws IOException If the file cannot be read
+     */
+    public ScanResult scan(File file) throws IOException {
+        return isElf(file) ? scanElf(file) : scanFile(file);
+    }
+
+    /**
+     * Walk a raw image as a stream of 16/32-bit instructions and build the instruction mix in
+     * one pass. Chunks are walked in parallel and corrected where an instruction crosses a
+     * chunk boundary, so the result is the same as for a sequential walk.
+     * @param file Image of code, addresses start at 0
+     * @param parallelism Number of worker threads, 1 walks sequentially on the calling thread
+     * @param byteOrder Byte order of the 32-bit words in the image
+     * @return Histogram of instruction classes
+     * @throws IOException If the image cannot be read
+     */
+    public static InstructionMix scanMix(File file, int parallelism, ByteOrder byteOrder) throws IOException {
+        try (RiscVOpcodeScanner scanner = new RiscVOpcodeScanner(parallelism, byteOrder)) {
+            return scanner.scanMix(file);
+        }
+    }
+
+    /**
+     * Build the instruction mix of a raw image, see {@link #scanMix(File, int, ByteOrder)}
+     * @param file Image of code, addresses start at 0
+     * @return Histogram of instruction classes
+     * @throws IOException If the image cannot be read
+     */
+    public InstructionMix scanMix(File file) throws IOException {
+        InstructionMix result = new InstructionMix(0);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long wordBytes = channel.size() & ~3L;
+            for (long position = 0; position < wordBytes; position += MAP_WINDOW) {
+                long size = Math.min(MAP_WINDOW, wordBytes - position);
+                // Map a few bytes beyond the window for instructions crossing its end
+                long mapped = Math.min(size + 8, wordBytes - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, mapped);
+                buffer.order(byteOrder);
+
+                MixTask task = new MixTask(buffer, position, 0, (int) size);
+                InstructionMix windowMix = pool != null ? pool.invoke(task) : task.walkRange();
+                result.append(windowMix, buffer, position);
             }
+            Metrics.count("scanned_bytes", wordBytes);
+        }
+        return result;
+    }
 
-            // Generate and write summary reports
-            writeInstructionTypeSummary(writer);
-            writeCSRAddressSummary(writer);
+    /**
+     * Write the predecoded sidecar of an image, see {@link PredecodedImage}. ELF files are
+     * loaded like the simulator loads them, raw images start at address 0.
+     * @param file Raw image or ELF file
+     * @param elf The file is an ELF file
+     * @param byteOrder Byte order of the words of a raw image
+     * @param sidecar Sidecar to write
+     * @throws IOException If the image cannot be read or the sidecar cannot be written
+     */
+    public static void writePredecoded(File file, boolean elf, ByteOrder byteOrder, Path sidecar) throws IOException {
+        if (elf) {
+            MemoryImage image = ELFHandler.load(file.toPath());
+            PredecodedImage.decode(image.getWords(), image.getBaseAddress()).write(sidecar);
+            return;
+        }
+        if (byteOrder != ByteOrder.LITTLE_ENDIAN) {
+            System.err.println("Warning: predecoding big endian words, the simulator loads raw images little endian (use -le)");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size() & ~3L);
+            PredecodedImage.decode(image, 0, byteOrder).write(sidecar);
+        }
+    }
 
-            System.out.println("Results written to " + outputFile.getAbsolutePath());
+    /**
+     * Check for the ELF magic number
+     * @param file File to check
+     * @return True if the file starts with an ELF header
+     * @throws IOException If the file cannot be read
+     */
+    public static boolean isElf(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return file.length() >= 4 && in.readInt() == 0x7F454C46;
+        }
+    }
 
-        } catch (IOException e) {
-            System.err.println("Error: " + e.getMessage());
+    /**
+     * Locate the code of an ELF file: the SHF_EXECINSTR sections, or the executable PT_LOAD
+     * segments if requested or if the file has no section headers.
+     * @param elf Parsed ELF file
+     * @param useSegments Use program headers instead of section headers
+     * @return Code regions sorted by address
+     */
+    public static List<CodeRegion> findCodeRegions(ElfFile elf, boolean useSegments) {
+        // jelf sign-extends the 32-bit fields of ELF32 files
+        long mask = elf.is32Bits() ? 0xFFFFFFFFL : -1L;
+        List<CodeRegion> regions = new ArrayList<>();
+        if (!useSegments) {
+            for (int i = 1; i < elf.e_shnum; i++) {
+                ElfSection section = elf.getSection(i);
+                ElfSectionHeader header = section.header;
+                if (header.sh_type == ElfSectionHeader.SHT_PROGBITS
+                        && (header.sh_flags & ElfSectionHeader.FLAG_EXEC_INSTR) != 0 && header.sh_size > 0) {
+                    regions.add(new CodeRegion(header.getName(),
+                            header.sh_offset & mask, header.sh_size & mask, header.sh_addr & mask));
+                }
+            }
+        }
+        if (regions.isEmpty()) {
+            for (int i = 0; i < elf.e_phnum; i++) {
+                ElfSegment segment = elf.getProgramHeader(i);
+                if (segment.p_type == ElfSegment.PT_LOAD && segment.isExecutable() && segment.p_filesz > 0) {
+                    regions.add(new CodeRegion("PT_LOAD[" + i + "]",
+                            segment.p_offset & mask, segment.p_filesz & mask, segment.p_vaddr & mask));
+                }
+            }
         }
+        regions.sort(Comparator.comparingLong(region -> region.address));
+        return regions;
     }
 
-    private static String decodeSystemInstruction(int instr) {
-        int funct3 = (instr >> 12) & 0x7;
-        int imm12 = (instr >> 20) & 0xFFF;
-        int rd = (instr >> 7) & 0x1F;
-        int rs1 = (instr >> 15) & 0x1F;
-
-        // Special cases (funct3 = 0)
-        if (funct3 == 0) {
-            switch (imm12) {
-                case 0x000: return "ECALL";
-                case 0x001: return "EBREAK";
-                case 0x302: return "MRET";
-                case 0x102: return "SRET";
-                case 0x002: return "URET";
-                default: return String.format("Unknown SYSTEM (funct3=000, imm=0x%03X)", imm12);
+    /**
+     * Scan only the code of an ELF file for SYSTEM instructions. The file is memory mapped once
+     * and each code region is scanned in place; offsets in the result are virtual addresses.
+     * @param file ELF file
+     * @param parallelism Number of worker threads, 1 scans sequentially on the calling thread
+     * @param useSegments Scan executable PT_LOAD segments instead of SHF_EXECINSTR sections
+     * @return Counters and instruction sites in address order
+     * @throws IOException If the file cannot be read or is not a valid ELF file
+     */
+    public static ScanResult scanElf(File file, int parallelism, boolean useSegments) throws IOException {
+        try (RiscVOpcodeScanner scanner = new RiscVOpcodeScanner(parallelism, ByteOrder.BIG_ENDIAN, useSegments, Metrics.isVerbose())) {
+            return scanner.scanElf(file);
+        }
+    }
+
+    /**
+     * Scan only the code of an ELF file, see {@link #scanElf(File, int, boolean)}
+     * @param file ELF file
+     * @return Counters and instruction sites in address order
+     * @throws IOException If the file cannot be read or is not a valid ELF file
+     */
+    public ScanResult scanElf(File file) throws IOException {
+        ScanResult result = new ScanResult();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ElfFile elf = ElfFile.from(mapped);
+            ByteOrder byteOrder = elf.ei_data == ElfFile.DATA_LSB ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+            for (CodeRegion region : findCodeRegions(elf, useSegments)) {
+                if (verbose) {
+                    System.out.println("Scanning " + region);
+                }
+                ByteBuffer buffer = mapped.slice((int) region.fileOffset, (int) region.size).order(byteOrder);
+
+                ScanTask task = new ScanTask(buffer, region.address, 0, (int) (region.size / 4));
+                result.append(pool != null ? pool.invoke(task) : task.scanRange());
+                Metrics.count("scanned_bytes", region.size & ~3L);
             }
+            Metrics.count("system_instructions", result.knownCount + result.unknownCount);
+        } catch (net.fornwall.jelf.ElfException e) {
+            throw new IOException("Invalid ELF file: " + e.getMessage(), e);
         }
+        return result;
+    }
 
-        // CSR instructions
-        String csrName = getCSRName(funct3);
-        if (csrName != null) {
-            return String.format("%s (rd=x%d, csr=0x%03X, rs1/x=%d)", csrName, rd, imm12, rs1);
+    /**
+     * Build the instruction mix over the code of an ELF file, each code region walked in place
+     * @param file ELF file
+     * @param parallelism Number of worker threads, 1 walks sequentially on the calling thread
+     * @param useSegments Walk executable PT_LOAD segments instead of SHF_EXECINSTR sections
+     * @return Histogram of instruction classes
+     * @throws IOException If the file cannot be read or is not a valid ELF file
+     */
+    public static InstructionMix scanElfMix(File file, int parallelism, boolean useSegments) throws IOException {
+        try (RiscVOpcodeScanner scanner = new RiscVOpcodeScanner(parallelism, ByteOrder.BIG_ENDIAN, useSegments, Metrics.isVerbose())) {
+            return scanner.scanElfMix(file);
         }
+    }
 
-        return "Unknown SYSTEM Instruction";
+    /**
+     * Build the instruction mix over the code of an ELF file, see {@link #scanElfMix(File, int, boolean)}
+     * @param file ELF file
+     * @return Histogram of instruction classes
+     * @throws IOException If the file cannot be read or is not a valid ELF file
+     */
+    public InstructionMix scanElfMix(File file) throws IOException {
+        InstructionMix result = null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ElfFile elf = ElfFile.from(mapped);
+            ByteOrder byteOrder = elf.ei_data == ElfFile.DATA_LSB ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+            for (CodeRegion region : findCodeRegions(elf, useSegments)) {
+                if (verbose) {
+                    System.out.println("Scanning " + region);
+                }
+                // Parcels are read from whole words, so a trailing half word needs the rest of its word mapped
+                int size = (int) Math.min((region.size + 3) & ~3L, channel.size() - region.fileOffset) & ~3;
+                ByteBuffer buffer = mapped.slice((int) region.fileOffset, size).order(byteOrder);
+
+                MixTask task = new MixTask(buffer, region.address, 0, (int) Math.min(region.size & ~1L, size));
+                InstructionMix regionMix = pool != null ? pool.invoke(task) : task.walkRange();
+                result = result == null ? regionMix : result.add(regionMix);
+                Metrics.count("scanned_bytes", region.size & ~1L);
+            }
+        } catch (net.fornwall.jelf.ElfException e) {
+            throw new IOException("Invalid ELF file: " + e.getMessage(), e);
+        }
+        return result != null ? result : new InstructionMix(0);
     }
 
-    private static String getCSRName(int funct3) {
-        switch (funct3) {
-            case 0b001: return "CSRRW";
-            case 0b010: return "CSRRS";
-            case 0b011: return "CSRRC";
-            case 0b101: return "CSRRWI";
-            case 0b110: return "CSRRSI";
-            case 0b111: return "CSRRCI";
-            default: return null;
+    /**
+     * Stop the worker threads
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
         }
     }
 
-    private static String getBaseInstructionType(String fullInstruction) {
-        // Extract just the instruction name without parameters
-        if (fullInstruction.contains(" ")) {
-            return fullInstruction.substring(0, fullInstruction.indexOf(" "));
+    /**
+     * Scans a range of words of a mapped window, splitting it in halves until the
+     * range is small enough to be scanned directly.
+     */
+    private static class ScanTask extends RecursiveTask<ScanResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer buffer;
+        private final long baseOffset;
+        private final int fromWord;
+        private final int toWord;
+
+        ScanTask(ByteBuffer buffer, long baseOffset, int fromWord, int toWord) {
+            this.buffer = buffer;
+            this.baseOffset = baseOffset;
+            this.fromWord = fromWord;
+            this.toWord = toWord;
+        }
+
+        @Override
+        protected ScanResult compute() {
+            if (toWord - fromWord <= CHUNK_WORDS) {
+                return scanRange();
+            }
+            int middle = (fromWord + toWord) >>> 1;
+            ScanTask left = new ScanTask(buffer, baseOffset, fromWord, middle);
+            left.fork();
+            ScanResult right = new ScanTask(buffer, baseOffset, middle, toWord).compute();
+            return left.join().append(right);
+        }
+
+        ScanResult scanRange() {
+            ScanResult result = new ScanResult();
+            for (int word = fromWord; word < toWord; word++) {
+                int instruction = buffer.getInt(word << 2);
+
+                if (RiscVDecoder.isSystem(instruction)) {
+                    result.addSystemInstruction(baseOffset + ((long) word << 2), instruction);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Walks a byte range of a mapped window for the instruction mix, splitting it in halves
+     * until the range is small enough to be walked directly.
+     */
+    private static class MixTask extends RecursiveTask<InstructionMix> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer buffer;
+        private final long baseAddress;
+        private final int from;
+        private final int to;
+
+        MixTask(ByteBuffer buffer, long baseAddress, int from, int to) {
+            this.buffer = buffer;
+            this.baseAddress = baseAddress;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected InstructionMix compute() {
+            if (to - from <= CHUNK_WORDS * 4) {
+                return walkRange();
+            }
+            int middle = ((from + to) >>> 1) & ~3;
+            MixTask left = new MixTask(buffer, baseAddress, from, middle);
+            left.fork();
+            InstructionMix right = new MixTask(buffer, baseAddress, middle, to).compute();
+            return left.join().append(right, buffer, baseAddress);
+        }
+
+        InstructionMix walkRange() {
+            return InstructionMix.walk(buffer, baseAddress, from, to);
         }
-        return fullInstruction;
     }
 
-    private static void incrementInstructionTypeCount(String instructionType) {
-        instructionTypeCounts.put(instructionType,
-                instructionTypeCounts.getOrDefault(instructionType, 0) + 1);
+    /**
+     * Write the scan report, echoing every known instruction to the console at the verbose level
+     * @param result Merged scan result
+     * @param incompleteTail Whether the image ended with a partial word
+     * @param writer Report destination
+     */
+    public static void writeReport(ScanResult result, boolean incompleteTail, PrintWriter writer) {
+        writeReport(result, incompleteTail, writer, Metrics.isVerbose());
     }
 
-    private static void incrementCSRCount(int csrAddress) {
-        csrAddressCounts.put(csrAddress,
-                csrAddressCounts.getOrDefault(csrAddress, 0) + 1);
+    /**
+     * Write the scan report: known CSR instructions, unknown SYSTEM instructions and summaries
+     * @param result Merged scan result
+     * @param incompleteTail Whether the image ended with a partial word
+     * @param writer Report destination
+     * @param echo Also print every known instruction to the console
+     */
+    public static void writeReport(ScanResult result, boolean incompleteTail, PrintWriter writer, boolean echo) {
+        // Write header to the output file with tabs
+        writer.println("=== RISC-V System/CSR Instructions Scan Results ===");
+        writer.println("\n--- Known CSR Instructions ---");
+        writer.println("Offset\tInstruction\tDecoded Instruction\tPrivilege Level\tUse and Accessibility");
+        writer.println("----------\t----------\t------------------\t--------------\t-------------------");
+
+        for (int i = 0; i < result.knownCount; i++) {
+            long offset = result.knownOffsets[i];
+            int instruction = result.knownInstructions[i];
+            String decoded = RiscVDecoder.describe(instruction);
+            int csrAddress = RiscVDecoder.csrAddress(instruction);
+            String privilegeLevel = RiscVDecoder.getPrivilegeLevel(csrAddress);
+            String accessibility = RiscVDecoder.getAccessibility(csrAddress);
+
+            writer.printf("0x%08X\t0x%08X\t%s\t%s\t%s%n",
+                    offset, instruction, decoded, privilegeLevel, accessibility);
+
+            if (echo) {
+                System.out.printf("0x%08X: 0x%08X → %s | %s | %s%n",
+                        offset, instruction, decoded, privilegeLevel, accessibility);
+            }
+        }
+
+        // Print unknown system instructions
+        if (result.unknownCount > 0) {
+            writer.println("\n--- Unknown SYSTEM Instructions ---");
+            writer.println("Offset\tInstruction\tDecoded Instruction");
+            writer.println("----------\t----------\t------------------");
+            for (int i = 0; i < result.unknownCount; i++) {
+                int instruction = result.unknownInstructions[i];
+                writer.println(String.format("0x%08X\t0x%08X\t%s",
+                        result.unknownOffsets[i], instruction, RiscVDecoder.describe(instruction)));
+            }
+        }
+
+        if (incompleteTail) {
+            String warning = "Warning: Incomplete instruction at end of file.";
+            System.err.println(warning);
+            writer.println("\n" + warning);
+        }
+
+        // Generate and write summary reports
+        writeInstructionTypeSummary(result, writer);
+        writeCSRAddressSummary(result, writer);
     }
 
-    private static void writeInstructionTypeSummary(PrintWriter writer) {
+    private static void writeInstructionTypeSummary(ScanResult result, PrintWriter writer) {
         writer.println("\n=== Instruction Type Summary ===");
         writer.println("Instruction Type\tCount");
         writer.println("----------------\t-----");
 
+        // Insert in first-occurrence order so ties sort exactly as they always have
+        Map<String, Integer> instructionTypeCounts = new HashMap<>();
+        for (int i = 0; i < result.firstSeenCount; i++) {
+            int op = result.firstSeenOrder[i];
+            String instructionType = RiscVDecoder.SYSTEM_OPS[op].typeName();
+            instructionTypeCounts.put(instructionType,
+                    instructionTypeCounts.getOrDefault(instructionType, 0) + result.systemOpCounts[op]);
+        }
+
         // Convert to list for sorting
         List<Map.Entry<String, Integer>> entries = new ArrayList<>(instructionTypeCounts.entrySet());
         entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
@@ -178,50 +628,33 @@ public class RiscVOpcodeScanner {
         writer.printf("Total\t%d%n", totalCount);
     }
 
-    private static void writeCSRAddressSummary(PrintWriter writer) {
+    private static void writeCSRAddressSummary(ScanResult result, PrintWriter writer) {
         writer.println("\n=== CSR Address Summary ===");
         writer.println("CSR Address\tPrivilege Level\tUse and Accessibility\tCount");
         writer.println("----------\t--------------\t-------------------\t-----");
 
-        // Group CSRs by privilege level and accessibility
-        Map<String, Map<String, Integer>> groupedCounts = new HashMap<>();
-
-        for (Map.Entry<Integer, Integer> entry : csrAddressCounts.entrySet()) {
-            int csrAddress = entry.getKey();
-            int count = entry.getValue();
-            String privilegeLevel = getPrivilegeLevel(csrAddress);
-            String accessibility = getAccessibility(csrAddress);
-            String key = privilegeLevel + "\t" + accessibility;
-
-            if (!groupedCounts.containsKey(key)) {
-                groupedCounts.put(key, new HashMap<>());
+        // Group CSRs by privilege level and accessibility, sorted by group and address
+        Map<String, List<Integer>> groupedAddresses = new TreeMap<>();
+        for (int csrAddress = 0; csrAddress < RiscVDecoder.NUM_CSRS; csrAddress++) {
+            if (result.csrAddressCounts[csrAddress] != 0) {
+                String key = RiscVDecoder.getPrivilegeLevel(csrAddress) + "\t" + RiscVDecoder.getAccessibility(csrAddress);
+                groupedAddresses.computeIfAbsent(key, k -> new ArrayList<>()).add(csrAddress);
             }
-
-            // Format the CSR address as a hex string
-            String csrHex = String.format("0x%03X", csrAddress);
-            groupedCounts.get(key).put(csrHex, count);
         }
 
-        // Sort and print by privilege level
-        List<String> keys = new ArrayList<>(groupedCounts.keySet());
-        Collections.sort(keys);
-
         int totalCount = 0;
         int totalUniqueRegisters = 0;
-        for (String key : keys) {
-            String[] parts = key.split("\t");
+        for (Map.Entry<String, List<Integer>> group : groupedAddresses.entrySet()) {
+            String[] parts = group.getKey().split("\t");
             String privilegeLevel = parts[0];
             String accessibility = parts[1];
 
-            Map<String, Integer> addresses = groupedCounts.get(key);
-            List<Map.Entry<String, Integer>> entries = new ArrayList<>(addresses.entrySet());
-            entries.sort(Map.Entry.comparingByKey());
-
+            List<Integer> addresses = group.getValue();
             int subtotal = 0;
-            for (Map.Entry<String, Integer> entry : entries) {
-                writer.printf("%s\t%s\t%s\t%d%n",
-                        entry.getKey(), privilegeLevel, accessibility, entry.getValue());
-                subtotal += entry.getValue();
+            for (int csrAddress : addresses) {
+                int count = result.csrAddressCounts[csrAddress];
+                writer.printf("0x%03X\t%s\t%s\t%d%n", csrAddress, privilegeLevel, accessibility, count);
+                subtotal += count;
             }
 
             int uniqueRegisters = addresses.size();
@@ -234,67 +667,4 @@ public class RiscVOpcodeScanner {
 
         writer.printf("Total CSR accesses: %d across %d unique registers%n", totalCount, totalUniqueRegisters);
     }
-
-    private static void initializeCSRMaps() {
-        // Unprivileged and User-Level CSRs (00 00)
-        addCSRRange(0x000, 0x0FF, "Unprivileged and User-Level", "Standard read/write");
-        addCSRRange(0x400, 0x4FF, "Unprivileged and User-Level", "Standard read/write");
-        addCSRRange(0x800, 0x8FF, "Unprivileged and User-Level", "Custom read/write");
-        addCSRRange(0xC00, 0xC7F, "Unprivileged and User-Level", "Standard read-only");
-        addCSRRange(0xC80, 0xCBF, "Unprivileged and User-Level", "Standard read-only");
-        addCSRRange(0xCC0, 0xCFF, "Unprivileged and User-Level", "Custom read-only");
-
-        // Supervisor-Level CSRs (00 01)
-        addCSRRange(0x100, 0x1FF, "Supervisor-Level", "Standard read/write");
-        addCSRRange(0x500, 0x57F, "Supervisor-Level", "Standard read/write");
-        addCSRRange(0x580, 0x5BF, "Supervisor-Level", "Standard read/write");
-        addCSRRange(0x5C0, 0x5FF, "Supervisor-Level", "Custom read/write");
-        addCSRRange(0x900, 0x97F, "Supervisor-Level", "Standard read/write");
-        addCSRRange(0x980, 0x9BF, "Supervisor-Level", "Standard read/write");
-        addCSRRange(0x9C0, 0x9FF, "Supervisor-Level", "Custom read/write");
-        addCSRRange(0xD00, 0xD7F, "Supervisor-Level", "Standard read-only");
-        addCSRRange(0xD80, 0xDBF, "Supervisor-Level", "Standard read-only");
-        addCSRRange(0xDC0, 0xDFF, "Supervisor-Level", "Custom read-only");
-
-        // Hypervisor and VS CSRs (00 10)
-        addCSRRange(0x200, 0x2FF, "Hypervisor and VS", "Standard read/write");
-        addCSRRange(0x600, 0x67F, "Hypervisor and VS", "Standard read/write");
-        addCSRRange(0x680, 0x6BF, "Hypervisor and VS", "Standard read/write");
-        addCSRRange(0x6C0, 0x6FF, "Hypervisor and VS", "Custom read/write");
-        addCSRRange(0xA00, 0xA7F, "Hypervisor and VS", "Standard read/write");
-        addCSRRange(0xA80, 0xABF, "Hypervisor and VS", "Standard read/write");
-        addCSRRange(0xAC0, 0xAFF, "Hypervisor and VS", "Custom read/write");
-        addCSRRange(0xE00, 0xE7F, "Hypervisor and VS", "Standard read-only");
-        addCSRRange(0xE80, 0xEBF, "Hypervisor and VS", "Standard read/write");
-        addCSRRange(0xEC0, 0xEFF, "Hypervisor and VS", "Custom read/write");
-
-        // Machine-Level CSRs (00 11)
-        addCSRRange(0x300, 0x3FF, "Machine-Level", "Standard read/write");
-        addCSRRange(0x700, 0x77F, "Machine-Level", "Standard read/write");
-        addCSRRange(0x780, 0x79F, "Machine-Level", "Standard read/write");
-        addCSRRange(0x7A0, 0x7AF, "Machine-Level", "Standard read/write/debug CSRs");
-        addCSRRange(0x7B0, 0x7BF, "Machine-Level", "Debug-mode-only CSRs");
-        addCSRRange(0x7C0, 0x7FF, "Machine-Level", "Custom read/write");
-        addCSRRange(0xB00, 0xB7F, "Machine-Level", "Standard read/write");
-        addCSRRange(0xB80, 0xBBF, "Machine-Level", "Standard read/write");
-        addCSRRange(0xBC0, 0xBFF, "Machine-Level", "Custom read/write");
-        addCSRRange(0xF00, 0xF7F, "Machine-Level", "Standard read-only");
-        addCSRRange(0xF80, 0xFBF, "Machine-Level", "Standard read/write");
-        addCSRRange(0xFC0, 0xFFF, "Machine-Level", "Custom read/write");
-    }
-
-    private static void addCSRRange(int start, int end, String privilegeLevel, String accessibility) {
-        for (int i = start; i <= end; i++) {
-            privilegeLevelMap.put(i, privilegeLevel);
-            accessibilityMap.put(i, accessibility);
-        }
-    }
-
-    private static String getPrivilegeLevel(int csrAddress) {
-        return privilegeLevelMap.getOrDefault(csrAddress, "Unknown");
-    }
-
-    private static String getAccessibility(int csrAddress) {
-        return accessibilityMap.getOrDefault(csrAddress, "Unknown");
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,287 @@
+package software;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * CSR usage of many images, e.g. all kernel, ZSBL and test program builds, scanned concurrently.
+ * <p>
+ * Every image is scanned in a task of its own, on virtual threads when the JVM has them (Java 21)
+ * and on platform threads otherwise. A semaphore bounds the images opened and mapped at the same
+ * time; the scanning itself runs on the worker pool of the shared {@link RiscVOpcodeScanner}.
+ * The report holds a summary line per image, the image x CSR matrix and the use of each CSR
+ * across the images. Images appear in the order they were given, so reports of two builds diff.
+ */
+public class ScanBatch {
+    public static final int DEFAULT_IO_CONCURRENCY = 8;
+
+    /**
+     * One image of the batch and its outcome
+     */
+    public static class Image {
+        final Path path;
+        // Listed explicitly instead of found in a directory, then it is scanned whatever it holds
+        final boolean explicit;
+        boolean skipped;
+        boolean elf;
+        long size;
+        long nanos;
+        ScanResult result;
+        String error;
+
+        Image(Path path, boolean explicit) {
+            this.path = path;
+            this.explicit = explicit;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return Scan result, null if the image failed or was skipped
+         */
+        public ScanResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return Reason the scan failed, null if it did not
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final List<Image> images;
+
+    private ScanBatch(List<Image> images) {
+        this.images = images;
+    }
+
+    /**
+     * Expand the command line arguments into images. Directories are searched recursively for
+     * ELF files and *.bin images, @file reads one path per line (# starts a comment).
+     * @param arguments Images, directories and @lists
+     * @return Images in argument order, directory contents sorted by path
+     * @throws IOException If a directory or list cannot be read
+     */
+    public static List<Image> collect(List<String> arguments) throws IOException {
+        List<Image> images = new ArrayList<>();
+        for (String argument : arguments) {
+            if (argument.startsWith("@")) {
+                List<String> listed = new ArrayList<>();
+                for (String line : Files.readAllLines(Paths.get(argument.substring(1)))) {
+                    line = line.replaceFirst("#.*", "").trim();
+                    if (!line.isEmpty()) {
+                        listed.add(line);
+                    }
+                }
+                images.addAll(collect(listed));
+                continue;
+            }
+            Path path = Paths.get(argument);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    for (Path file : walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                        images.add(new Image(file, false));
+                    }
+                }
+            } else {
+                images.add(new Image(path, true));
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Scan all images concurrently
+     * @param images Images from {@link #collect}
+     * @param scanner Scanner shared by all images
+     * @param ioConcurrency Images open at the same time
+     * @return Outcome of every image, failed images keep their error
+     * @throws IOException If the batch is interrupted
+     */
+    public static ScanBatch scan(List<Image> images, RiscVOpcodeScanner scanner, int ioConcurrency) throws IOException {
+        Semaphore open = new Semaphore(ioConcurrency);
+        ExecutorService executor = newVirtualThreadExecutor(ioConcurrency);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Image image : images) {
+                tasks.add(executor.submit(() -> {
+                    open.acquire();
+                    try {
+                        scanImage(image, scanner);
+                    } finally {
+                        open.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            // Failures of an image are recorded in it, anything else is a bug
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch scan interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        List<Image> scanned = new ArrayList<>();
+        for (Image image : images) {
+            if (!image.skipped) {
+                scanned.add(image);
+            }
+        }
+        return new ScanBatch(scanned);
+    }
+
+    private static void scanImage(Image image, RiscVOpcodeScanner scanner) {
+        long start = System.nanoTime();
+        File file = image.path.toFile();
+        try {
+            image.elf = RiscVOpcodeScanner.isElf(file);
+            if (!image.elf && !image.explicit && !file.getName().endsWith(".bin")) {
+                // Sources, scripts and the like found in a directory
+                image.skipped = true;
+                return;
+            }
+            image.size = file.length();
+            image.result = image.elf ? scanner.scanElf(file) : scanner.scanFile(file);
+        } catch (IOException | RuntimeException e) {
+            image.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        image.nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Virtual threads are only available from Java 21 on, the build targets older JVMs as well
+     */
+    private static ExecutorService newVirtualThreadExecutor(int fallbackThreads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(fallbackThreads);
+        }
+    }
+
+    public List<Image> getImages() {
+        return images;
+    }
+
+    public int getImageCount() {
+        return images.size();
+    }
+
+    public int getFailureCount() {
+        int failures = 0;
+        for (Image image : images) {
+            if (image.result == null) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Write the per-image summaries, the image x CSR matrix and the use of each CSR
+     * @param writer Report destination
+     */
+    public void writeReport(PrintWriter writer) {
+        int[] csrTotals = new int[RiscVDecoder.NUM_CSRS];
+        int[] csrImages = new int[RiscVDecoder.NUM_CSRS];
+        for (Image image : images) {
+            if (image.result != null) {
+                for (int csr = 0; csr < RiscVDecoder.NUM_CSRS; csr++) {
+                    int count = image.result.csrAddressCounts[csr];
+                    csrTotals[csr] += count;
+                    csrImages[csr] += count != 0 ? 1 : 0;
+                }
+            }
+        }
+        List<Integer> used = new ArrayList<>();
+        for (int csr = 0; csr < RiscVDecoder.NUM_CSRS; csr++) {
+            if (csrImages[csr] != 0) {
+                used.add(csr);
+            }
+        }
+
+        writer.println("=== RISC-V CSR Usage Across Images ===");
+        writer.println("\n--- Per-Image Summary ---");
+        writer.println("Image\tType\tBytes\tKnown\tUnknown\tUnique CSRs\tScan (ms)");
+        writer.println("-----\t----\t-----\t-----\t-------\t-----------\t---------");
+        for (Image image : images) {
+            if (image.result == null) {
+                continue;
+            }
+            int unique = 0;
+            for (int csr : used) {
+                unique += image.result.csrAddressCounts[csr] != 0 ? 1 : 0;
+            }
+            writer.printf("%s\t%s\t%d\t%d\t%d\t%d\t%.1f%n", image.path, image.elf ? "ELF" : "raw", image.size,
+                    image.result.knownCount, image.result.unknownCount, unique, image.nanos / 1e6);
+        }
+
+        if (getFailureCount() > 0) {
+            writer.println("\n--- Failed Images ---");
+            writer.println("Image\tError");
+            writer.println("-----\t-----");
+            for (Image image : images) {
+                if (image.result == null) {
+                    writer.printf("%s\t%s%n", image.path, image.error);
+                }
+            }
+        }
+
+        writer.println("\n--- Image x CSR Matrix ---");
+        StringBuilder header = new StringBuilder("Image");
+        for (int csr : used) {
+            header.append(String.format("\t0x%03X", csr));
+        }
+        writer.println(header.append("\tTotal"));
+        for (Image image : images) {
+            if (image.result == null) {
+                continue;
+            }
+            StringBuilder row = new StringBuilder(image.path.toString());
+            int total = 0;
+            for (int csr : used) {
+                int count = image.result.csrAddressCounts[csr];
+                row.append('\t').append(count);
+                total += count;
+            }
+            writer.println(row.append('\t').append(total));
+        }
+        StringBuilder totals = new StringBuilder("Total");
+        int total = 0;
+        for (int csr : used) {
+            totals.append('\t').append(csrTotals[csr]);
+            total += csrTotals[csr];
+        }
+        writer.println(totals.append('\t').append(total));
+
+        writer.println("\n--- CSR Use Across Images ---");
+        writer.println("CSR Address\tPrivilege Level\tUse and Accessibility\tImages\tAccesses");
+        writer.println("----------\t--------------\t-------------------\t------\t--------");
+        for (int csr : used) {
+            writer.printf("0x%03X\t%s\t%s\t%d\t%d%n", csr, RiscVDecoder.getPrivilegeLevel(csr),
+                    RiscVDecoder.getAccessibility(csr), csrImages[csr], csrTotals[csr]);
+        }
+        writer.printf("%d CSRs used by %d images%n", used.size(), images.size() - getFailureCount());
+    }
+}
@@ -0,0 +1,354 @@
+package software;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact binary index of the SYSTEM instruction sites found by {@link RiscVOpcodeScanner}.
+ * <p>
+ * The file holds all sites sorted by address, and per CSR address and per instruction class
+ * the (address sorted) list of site numbers. It is memory mapped for queries, so looking up
+ * a CSR or an instruction class is a directory access and address lookups are binary searches;
+ * nothing has to be rescanned or parsed. The text report can be rendered from the index.
+ * <p>
+ * Layout, little endian: 32-byte header (magic, version, flags, site count, class count,
+ * CSR site count), long[sites] addresses, int[sites] instructions, int[4097] CSR directory,
+ * int[CSR sites] CSR site numbers, int[classes + 1] class directory, int[sites] class site numbers.
+ */
+public class ScanIndex {
+    private static final int MAGIC = 0x58495357; // "WSIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int FLAG_INCOMPLETE_TAIL = 1;
+
+    private final int flags;
+    private final int siteCount;
+    private final LongBuffer addresses;
+    private final IntBuffer instructions;
+    private final IntBuffer csrStart;
+    private final IntBuffer csrSites;
+    private final IntBuffer classStart;
+    private final IntBuffer classSites;
+
+    private ScanIndex(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a scan index (version " + VERSION + ")");
+        }
+        flags = buffer.getInt(8);
+        siteCount = buffer.getInt(12);
+        int classCount = buffer.getInt(16);
+        int csrSiteCount = buffer.getInt(20);
+        if (classCount != RiscVDecoder.NUM_SYSTEM_OPS) {
+            throw new IOException("Scan index was written for a different set of instruction classes");
+        }
+
+        int position = HEADER_BYTES;
+        addresses = view(buffer, position, siteCount * 8).asLongBuffer();
+        position += siteCount * 8;
+        instructions = view(buffer, position, siteCount * 4).asIntBuffer();
+        position += siteCount * 4;
+        csrStart = view(buffer, position, (RiscVDecoder.NUM_CSRS + 1) * 4).asIntBuffer();
+        position += (RiscVDecoder.NUM_CSRS + 1) * 4;
+        csrSites = view(buffer, position, csrSiteCount * 4).asIntBuffer();
+        position += csrSiteCount * 4;
+        classStart = view(buffer, position, (classCount + 1) * 4).asIntBuffer();
+        position += (classCount + 1) * 4;
+        classSites = view(buffer, position, siteCount * 4).asIntBuffer();
+    }
+
+    private static ByteBuffer view(ByteBuffer buffer, int position, int length) {
+        return buffer.slice(position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Memory map an index file
+     * @param file Index written by {@link #write}
+     * @return Index ready for queries
+     * @throws IOException If the file cannot be read or is not an index
+     */
+    public static ScanIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ScanIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write the index for a scan result
+     * @param result Merged scan result
+     * @param incompleteTail Whether the image ended with a partial word
+     * @param file Index file to write
+     * @throws IOException If the file cannot be written
+     */
+    public static void write(ScanResult result, boolean incompleteTail, Path file) throws IOException {
+        int known = result.getKnownCount();
+        int unknown = result.getUnknownCount();
+        int sites = known + unknown;
+        int classCount = RiscVDecoder.NUM_SYSTEM_OPS;
+
+        // Merge known and unknown sites back into one address sorted list
+        long[] siteAddresses = new long[sites];
+        int[] siteInstructions = new int[sites];
+        for (int k = 0, u = 0, i = 0; i < sites; i++) {
+            if (u == unknown || (k < known && result.getKnownOffset(k) < result.getUnknownOffset(u))) {
+                siteAddresses[i] = result.getKnownOffset(k);
+                siteInstructions[i] = result.getKnownInstruction(k++);
+            } else {
+                siteAddresses[i] = result.getUnknownOffset(u);
+                siteInstructions[i] = result.getUnknownInstruction(u++);
+            }
+        }
+
+        // Bucket the site numbers by CSR address and by class, keeping address order within a bucket
+        int[] csrStart = new int[RiscVDecoder.NUM_CSRS + 1];
+        int[] classStart = new int[classCount + 1];
+        for (int i = 0; i < sites; i++) {
+            int op = RiscVDecoder.systemOp(siteInstructions[i]);
+            if (!RiscVDecoder.SYSTEM_OPS[op].isUnknown()) {
+                csrStart[RiscVDecoder.csrAddress(siteInstructions[i]) + 1]++;
+            }
+            classStart[op + 1]++;
+        }
+        for (int i = 0; i < RiscVDecoder.NUM_CSRS; i++) {
+            csrStart[i + 1] += csrStart[i];
+        }
+        for (int i = 0; i < classCount; i++) {
+            classStart[i + 1] += classStart[i];
+        }
+        int[] csrSites = new int[known];
+        int[] classSites = new int[sites];
+        int[] csrFill = java.util.Arrays.copyOf(csrStart, RiscVDecoder.NUM_CSRS);
+        int[] classFill = java.util.Arrays.copyOf(classStart, classCount);
+        for (int i = 0; i < sites; i++) {
+            int op = RiscVDecoder.systemOp(siteInstructions[i]);
+            if (!RiscVDecoder.SYSTEM_OPS[op].isUnknown()) {
+                csrSites[csrFill[RiscVDecoder.csrAddress(siteInstructions[i])]++] = i;
+            }
+            classSites[classFill[op]++] = i;
+        }
+
+        int size = HEADER_BYTES + sites * 12 + csrStart.length * 4 + known * 4 + classStart.length * 4 + sites * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(incompleteTail ? FLAG_INCOMPLETE_TAIL : 0)
+                .putInt(sites).putInt(classCount).putInt(known).putLong(0);
+        buffer.asLongBuffer().put(siteAddresses);
+        buffer.position(buffer.position() + sites * 8);
+        for (int[] array : new int[][]{siteInstructions, csrStart, csrSites, classStart, classSites}) {
+            buffer.asIntBuffer().put(array);
+            buffer.position(buffer.position() + array.length * 4);
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    public long getAddress(int site) {
+        return addresses.get(site);
+    }
+
+    public int getInstruction(int site) {
+        return instructions.get(site);
+    }
+
+    public int getCSRSiteCount(int csrAddress) {
+        return csrStart.get(csrAddress + 1) - csrStart.get(csrAddress);
+    }
+
+    /**
+     * @return Site number of the i-th (in address order) access to a CSR
+     */
+    public int getCSRSite(int csrAddress, int i) {
+        return csrSites.get(csrStart.get(csrAddress) + i);
+    }
+
+    public int getClassSiteCount(RiscVDecoder.SystemOp op) {
+        return classStart.get(op.ordinal() + 1) - classStart.get(op.ordinal());
+    }
+
+    /**
+     * @return Site number of the i-th (in address order) instruction of a class
+     */
+    public int getClassSite(RiscVDecoder.SystemOp op, int i) {
+        return classSites.get(classStart.get(op.ordinal()) + i);
+    }
+
+    /**
+     * Find the site at an address
+     * @param address Instruction address
+     * @return Site number, or -1 if there is no SYSTEM instruction at that address
+     */
+    public int findSite(long address) {
+        int site = lowerBound(address);
+        return site < siteCount && addresses.get(site) == address ? site : -1;
+    }
+
+    /**
+     * @return Number of the first site at or above an address, site count if there is none
+     */
+    public int lowerBound(long address) {
+        int low = 0;
+        int high = siteCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (addresses.get(middle) < address) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return Position of the first access to a CSR at or above an address, within that CSR's sites
+     */
+    public int lowerBound(int csrAddress, long address) {
+        int base = csrStart.get(csrAddress);
+        int low = 0;
+        int high = getCSRSiteCount(csrAddress);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (addresses.get(csrSites.get(base + middle)) < address) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Rebuild the scan result, e.g. to render the text report without rescanning the image
+     * @return Scan result with all counters and sites
+     */
+    public ScanResult toScanResult() {
+        ScanResult result = new ScanResult();
+        for (int i = 0; i < siteCount; i++) {
+            result.addSystemInstruction(addresses.get(i), instructions.get(i));
+        }
+        return result;
+    }
+
+    public boolean hasIncompleteTail() {
+        return (flags & FLAG_INCOMPLETE_TAIL) != 0;
+    }
+
+    private static void printSite(ScanIndex index, int site) {
+        int instruction = index.getInstruction(site);
+        System.out.printf("0x%08X\t0x%08X\t%s%n", index.getAddress(site), instruction, RiscVDecoder.describe(instruction));
+        Metrics.count("sites", 1);
+    }
+
+    private static long parseHex(String value) {
+        return Long.parseUnsignedLong(value.replace("_", "").replaceFirst("^0[xX]", ""), 16);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java ScanIndex [--metrics <file>] [-v] <index> <query>");
+        System.err.println("  csr <csr>[-<csr>] [writes] [<from> <to>]  accesses to a CSR or CSR range, optionally only writes");
+        System.err.println("  class <CSRRW|MRET|...>                    all sites of an instruction class");
+        System.err.println("  at <address>                              the SYSTEM instruction at an address");
+        System.err.println("  range <from> <to>                         all sites in an address range");
+        System.err.println("  report <file>                             render the text report");
+        System.err.println("Example: java ScanIndex csr_instructions.idx csr 0x180 writes");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        args = Metrics.init("ScanIndex", args);
+        if (args.length < 2) {
+            usage();
+        }
+
+        try {
+            Path indexFile = Paths.get(args[0]);
+            ScanIndex index = Metrics.time("open", () -> open(indexFile));
+            switch (args[1]) {
+                case "csr": {
+                    String[] bounds = args[2].split("-");
+                    long first = parseHex(bounds[0]);
+                    long last = bounds.length > 1 ? parseHex(bounds[1]) : first;
+                    if (first < 0 || first > last || last >= RiscVDecoder.NUM_CSRS) {
+                        // CSR addresses have 12 bits
+                        usage();
+                    }
+                    int next = 3;
+                    boolean writesOnly = args.length > next && args[next].equals("writes");
+                    if (writesOnly) {
+                        next++;
+                    }
+                    long from = args.length > next + 1 ? parseHex(args[next]) : 0;
+                    long to = args.length > next + 1 ? parseHex(args[next + 1]) : Long.MAX_VALUE;
+                    for (int csr = (int) first; csr <= last; csr++) {
+                        for (int i = index.lowerBound(csr, from); i < index.getCSRSiteCount(csr); i++) {
+                            int site = index.getCSRSite(csr, i);
+                            if (index.getAddress(site) >= to) {
+                                break;
+                            }
+                            if (!writesOnly || RiscVDecoder.writesCSR(index.getInstruction(site))) {
+                                printSite(index, site);
+                            }
+                        }
+                    }
+                    break;
+                }
+                case "class": {
+                    RiscVDecoder.SystemOp op = RiscVDecoder.SystemOp.valueOf(args[2].toUpperCase());
+                    for (int i = 0; i < index.getClassSiteCount(op); i++) {
+                        printSite(index, index.getClassSite(op, i));
+                    }
+                    break;
+                }
+                case "at": {
+                    int site = index.findSite(parseHex(args[2]));
+                    if (site < 0) {
+                        System.out.println("No SYSTEM instruction at " + args[2]);
+                    } else {
+                        printSite(index, site);
+                    }
+                    break;
+                }
+                case "range": {
+                    long to = parseHex(args[3]);
+                    for (int site = index.lowerBound(parseHex(args[2])); site < index.getSiteCount()
+                            && index.getAddress(site) < to; site++) {
+                        printSite(index, site);
+                    }
+                    break;
+                }
+                case "report": {
+                    try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(args[2])))) {
+                        RiscVOpcodeScanner.writeReport(index.toScanResult(), index.hasIncompleteTail(), writer);
+                    }
+                    Metrics.info("Report written to " + args[2]);
+                    break;
+                }
+                default:
+                    System.err.println("Unknown query: " + args[1]);
+                    System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid query: " + String.join(" ", args));
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package software;
+
+import java.util.Arrays;
+
+/**
+ * Counters and instruction sites collected while scanning one part of an image.
+ * Results of neighbouring parts are combined with {@link #append(ScanResult)} in address
+ * order, so a merged result is indistinguishable from a single sequential scan.
+ * Counting and recording a site does not allocate, apart from growing the site arrays.
+ */
+public class ScanResult {
+    // Known CSR/SYSTEM instructions, in address order
+    long[] knownOffsets = new long[16];
+    int[] knownInstructions = new int[16];
+    int knownCount = 0;
+
+    // Unknown SYSTEM instructions, in address order
+    long[] unknownOffsets = new long[16];
+    int[] unknownInstructions = new int[16];
+    int unknownCount = 0;
+
+    // Counters indexed by SystemOp ordinal and by 12-bit CSR address
+    final int[] systemOpCounts = new int[RiscVDecoder.NUM_SYSTEM_OPS];
+    final int[] csrAddressCounts = new int[RiscVDecoder.NUM_CSRS];
+
+    // SystemOp ordinals in order of first occurrence, the summary relies on it for ties
+    final int[] firstSeenOrder = new int[RiscVDecoder.NUM_SYSTEM_OPS];
+    int firstSeenCount = 0;
+
+    /**
+     * Count and record one SYSTEM instruction
+     * @param offset Address of the instruction
+     * @param instruction Instruction word
+     */
+    public void addSystemInstruction(long offset, int instruction) {
+        int op = RiscVDecoder.systemOp(instruction);
+        if (RiscVDecoder.SYSTEM_OPS[op].isUnknown()) {
+            addUnknown(offset, instruction);
+        } else {
+            addKnown(offset, instruction);
+            csrAddressCounts[RiscVDecoder.csrAddress(instruction)]++;
+        }
+        countSystemOp(op, 1);
+    }
+
+    private void countSystemOp(int op, int count) {
+        if (systemOpCounts[op] == 0) {
+            firstSeenOrder[firstSeenCount++] = op;
+        }
+        systemOpCounts[op] += count;
+    }
+
+    void addKnown(long offset, int instruction) {
+        if (knownCount == knownOffsets.length) {
+            knownOffsets = Arrays.copyOf(knownOffsets, knownCount * 2);
+            knownInstructions = Arrays.copyOf(knownInstructions, knownCount * 2);
+        }
+        knownOffsets[knownCount] = offset;
+        knownInstructions[knownCount] = instruction;
+        knownCount++;
+    }
+
+    void addUnknown(long offset, int instruction) {
+        if (unknownCount == unknownOffsets.length) {
+            unknownOffsets = Arrays.copyOf(unknownOffsets, unknownCount * 2);
+            unknownInstructions = Arrays.copyOf(unknownInstructions, unknownCount * 2);
+        }
+        unknownOffsets[unknownCount] = offset;
+        unknownInstructions[unknownCount] = instruction;
+        unknownCount++;
+    }
+
+    /**
+     * Append the result of the part of the image directly following this one
+     * @param next Result for the following address range
+     * @return This result, now covering both ranges
+     */
+    ScanResult append(ScanResult next) {
+        for (int i = 0; i < next.knownCount; i++) {
+            addKnown(next.knownOffsets[i], next.knownInstructions[i]);
+        }
+        for (int i = 0; i < next.unknownCount; i++) {
+            addUnknown(next.unknownOffsets[i], next.unknownInstructions[i]);
+        }
+        for (int i = 0; i < next.firstSeenCount; i++) {
+            int op = next.firstSeenOrder[i];
+            countSystemOp(op, next.systemOpCounts[op]);
+        }
+        for (int csr = 0; csr < RiscVDecoder.NUM_CSRS; csr++) {
+            csrAddressCounts[csr] += next.csrAddressCounts[csr];
+        }
+        return this;
+    }
+
+    public int getKnownCount() {
+        return knownCount;
+    }
+
+    public int getUnknownCount() {
+        return unknownCount;
+    }
+
+    public long getKnownOffset(int i) {
+        return knownOffsets[i];
+    }
+
+    public int getKnownInstruction(int i) {
+        return knownInstructions[i];
+    }
+
+    public long getUnknownOffset(int i) {
+        return unknownOffsets[i];
+    }
+
+    public int getUnknownInstruction(int i) {
+        return unknownInstructions[i];
+    }
+
+    public int getSystemOpCount(RiscVDecoder.SystemOp op) {
+        return systemOpCounts[op.ordinal()];
+    }
+
+    public int getCSRCount(int csrAddress) {
+        return csrAddressCounts[csrAddress & 0xFFF];
+    }
+}
@@ -0,0 +1,269 @@
+package software;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Memory of up to the whole 32-bit address space, held in 4 KB pages that are only allocated
+ * when a non-zero value is written to them. Untouched pages all share one zero page, so the
+ * memory use follows the touched pages and not the span of the addresses, e.g. for images
+ * linked at 0x80000000.
+ * <p>
+ * Words hold the little endian memory bytes like {@link MemoryImage}. The word accessors are
+ * named apply and update so Scala code, like the ISA simulator, indexes the memory like an
+ * Array[Int] with mem(i) and mem(i) = value. Bulk loads and stores copy ByteBuffers page by
+ * page. The memory is not thread safe.
+ */
+public class SparseMemoryImage {
+    public static final int PAGE_SIZE = 4096;
+    private static final int PAGE_WORDS = PAGE_SIZE / 4;
+    private static final int PAGE_SHIFT = 12;
+    // Two-level page table: a directory of tables of 1024 pages, i.e. 4 MB per table
+    private static final int TABLE_PAGES = 1024;
+    private static final int TABLE_SHIFT = 22;
+
+    private static final int[] ZERO_PAGE = new int[PAGE_WORDS];
+    private static final int[][] ZERO_TABLE = new int[TABLE_PAGES][];
+
+    static {
+        Arrays.fill(ZERO_TABLE, ZERO_PAGE);
+    }
+
+    private final long size;
+    private final int words;
+    private final int[][][] directory;
+    private int pageCount = 0;
+
+    /**
+     * Memory covering the whole 32-bit address space
+     */
+    public SparseMemoryImage() {
+        this(1L << 32);
+    }
+
+    /**
+     * @param size Size in bytes, at most 4 GB, accesses beyond it fail like array accesses
+     */
+    public SparseMemoryImage(long size) {
+        if (size <= 0 || size > 1L << 32 || size % 4 != 0) {
+            throw new IllegalArgumentException("Memory size must be a multiple of 4 up to 4 GB: " + size);
+        }
+        this.size = size;
+        this.words = (int) (size / 4);
+        directory = new int[(int) ((size + (1L << TABLE_SHIFT) - 1) >>> TABLE_SHIFT)][][];
+        Arrays.fill(directory, ZERO_TABLE);
+    }
+
+    /**
+     * @return Size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Size in words
+     */
+    public int length() {
+        return words;
+    }
+
+    /**
+     * @return Number of allocated pages
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return Bytes held by the allocated pages
+     */
+    public long getAllocatedBytes() {
+        return (long) pageCount * PAGE_SIZE;
+    }
+
+    /**
+     * Read a word
+     * @param index Word index, the byte address divided by 4
+     */
+    public int apply(int index) {
+        if (index < 0 || index >= words) {
+            throw new IndexOutOfBoundsException("Word index " + index + " out of bounds for length " + words);
+        }
+        return directory[index >>> (TABLE_SHIFT - 2)][(index >>> (PAGE_SHIFT - 2)) & (TABLE_PAGES - 1)][index & (PAGE_WORDS - 1)];
+    }
+
+    /**
+     * Write a word, a zero written to an untouched page allocates nothing
+     * @param index Word index, the byte address divided by 4
+     */
+    public void update(int index, int value) {
+        if (index < 0 || index >= words) {
+            throw new IndexOutOfBoundsException("Word index " + index + " out of bounds for length " + words);
+        }
+        int[] page = directory[index >>> (TABLE_SHIFT - 2)][(index >>> (PAGE_SHIFT - 2)) & (TABLE_PAGES - 1)];
+        if (page == ZERO_PAGE) {
+            if (value == 0) {
+                return;
+            }
+            page = allocate((long) index << 2);
+        }
+        page[index & (PAGE_WORDS - 1)] = value;
+    }
+
+    public byte getByte(long address) {
+        return (byte) (apply((int) (address >>> 2)) >>> ((address & 3) << 3));
+    }
+
+    public void putByte(long address, byte value) {
+        int index = (int) (address >>> 2);
+        int shift = (int) (address & 3) << 3;
+        update(index, (apply(index) & ~(0xFF << shift)) | ((value & 0xFF) << shift));
+    }
+
+    /**
+     * Write words to consecutive addresses
+     * @param address Word aligned address of words[0]
+     * @param source Words to write
+     */
+    public void putWords(long address, int[] source) {
+        checkRange(address, 4L * source.length);
+        int index = (int) (address >>> 2);
+        for (int word : source) {
+            update(index++, word);
+        }
+    }
+
+    /**
+     * Copy bytes into the memory. Pages that only receive zeros stay unallocated.
+     * @param address Address of the first byte
+     * @param source Bytes from the position to the limit, the position is not changed
+     */
+    public void load(long address, ByteBuffer source) {
+        int length = source.remaining();
+        checkRange(address, length);
+        ByteBuffer bytes = source.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int i = 0;
+        for (; i < length && ((address + i) & 3) != 0; i++) {
+            putByte(address + i, bytes.get(i));
+        }
+        while (length - i >= 4) {
+            long position = address + i;
+            int pageOffset = (int) (position & (PAGE_SIZE - 1));
+            int count = Math.min(PAGE_SIZE - pageOffset, (length - i) & ~3) >>> 2;
+            IntBuffer span = bytes.slice(i, count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            int[] page = page(position);
+            if (page == ZERO_PAGE) {
+                if (isZero(span)) {
+                    i += count * 4;
+                    continue;
+                }
+                page = allocate(position);
+            }
+            span.get(page, pageOffset >>> 2, count);
+            i += count * 4;
+        }
+        for (; i < length; i++) {
+            putByte(address + i, bytes.get(i));
+        }
+    }
+
+    /**
+     * Copy bytes out of the memory
+     * @param address Address of the first byte
+     * @param destination Filled from the position to the limit, the position is not changed
+     */
+    public void store(long address, ByteBuffer destination) {
+        int length = destination.remaining();
+        checkRange(address, length);
+        ByteBuffer bytes = destination.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int i = 0;
+        for (; i < length && ((address + i) & 3) != 0; i++) {
+            bytes.put(i, getByte(address + i));
+        }
+        while (length - i >= 4) {
+            long position = address + i;
+            int pageOffset = (int) (position & (PAGE_SIZE - 1));
+            int count = Math.min(PAGE_SIZE - pageOffset, (length - i) & ~3) >>> 2;
+            bytes.slice(i, count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+                    .put(page(position), pageOffset >>> 2, count);
+            i += count * 4;
+        }
+        for (; i < length; i++) {
+            bytes.put(i, getByte(address + i));
+        }
+    }
+
+    /**
+     * Set a byte range to one value, filling with zeros does not allocate pages
+     */
+    public void fill(long address, long length, byte value) {
+        checkRange(address, length);
+        long end = address + length;
+        for (; address < end && (address & 3) != 0; address++) {
+            putByte(address, value);
+        }
+        int word = (value & 0xFF) * 0x01010101;
+        for (; address + 4 <= end; address += 4) {
+            update((int) (address >>> 2), word);
+        }
+        for (; address < end; address++) {
+            putByte(address, value);
+        }
+    }
+
+    /**
+     * Find the next allocated page, e.g. to write out only the touched parts of the memory
+     * @param address Address to search from
+     * @return Address of the first allocated page at or after the page of the address, -1 if there is none
+     */
+    public long nextPage(long address) {
+        for (long page = address & -PAGE_SIZE; page < size; page += PAGE_SIZE) {
+            int[][] table = directory[(int) (page >>> TABLE_SHIFT)];
+            if (table == ZERO_TABLE) {
+                // Skip to the next table
+                page = (page | ((1L << TABLE_SHIFT) - 1)) - PAGE_SIZE + 1;
+                continue;
+            }
+            if (table[(int) (page >>> PAGE_SHIFT) & (TABLE_PAGES - 1)] != ZERO_PAGE) {
+                return page;
+            }
+        }
+        return -1;
+    }
+
+    private int[] page(long address) {
+        return directory[(int) (address >>> TABLE_SHIFT)][(int) (address >>> PAGE_SHIFT) & (TABLE_PAGES - 1)];
+    }
+
+    private int[] allocate(long address) {
+        int tableIndex = (int) (address >>> TABLE_SHIFT);
+        int[][] table = directory[tableIndex];
+        if (table == ZERO_TABLE) {
+            table = ZERO_TABLE.clone();
+            directory[tableIndex] = table;
+        }
+        int[] page = new int[PAGE_WORDS];
+        table[(int) (address >>> PAGE_SHIFT) & (TABLE_PAGES - 1)] = page;
+        pageCount++;
+        return page;
+    }
+
+    private static boolean isZero(IntBuffer span) {
+        for (int i = 0; i < span.limit(); i++) {
+            if (span.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkRange(long address, long length) {
+        if (address < 0 || length < 0 || address + length > size) {
+            throw new IndexOutOfBoundsException(String.format("0x%X + %d is outside the memory of %d bytes",
+                    address, length, size));
+        }
+    }
+}
@@ -1,41 +1,287 @@
 package software;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * Places binaries at fixed offsets of one image, as described by a layout manifest.
+ * <p>
+ * Manifest lines are "&lt;file&gt; &lt;offset&gt; [align=&lt;n&gt;] [fill=&lt;byte&gt;]", '#' starts a comment.
+ * Numbers are decimal or 0x-prefixed hex with an optional K/M/G suffix, an offset of "+" places
+ * the file after the previous one. An entry starts at a multiple of its alignment and is padded
+ * with the fill byte up to the next multiple. Without a manifest the default layout is used:
+ * ZSBL.bin at 0, wildcat.dtb at 1MB, Exception_Handler.bin at 3MB and Image.bin at 4MB.
+ * <p>
+ * Overlaps are rejected before anything is written. The inputs are then copied concurrently
+ * with positional transfers into the output, gaps are never written and stay sparse holes.
+ */
 public class StitchBinaries {
 
-    public static void main(String[] args) throws IOException {
-        // Input binary files
-        String file1Path = "ZSBL.bin";
-        String file2Path = "wildcat.dtb";
-        String file3Path = "Exception_Handler.bin";
-        String file4Path = "Image.bin";
-
-        // Corresponding memory offsets
-        int offset1 = 0x00000000; // 0MB
-        int offset2 = 0x00100000; // 1MB
-        int offset3 = 0x00300000; // 3MB
-        int offset4 = 0x00400000; // 4MB
-
-        // Read all files into byte arrays
-        byte[] bin1 = Files.readAllBytes(Paths.get(file1Path));
-        byte[] bin2 = Files.readAllBytes(Paths.get(file2Path));
-        byte[] bin3 = Files.readAllBytes(Paths.get(file3Path));
-        byte[] bin4 = Files.readAllBytes(Paths.get(file4Path));
-
-        // Calculate size of final output (largest offset + size)
-        int totalSize = Math.max(offset1 + bin1.length, Math.max(offset2 + bin2.length, Math.max(offset3 + bin3.length,offset4 + bin4.length)));
-        byte[] stitched = new byte[totalSize];
-
-        // Place each binary at its offset
-        System.arraycopy(bin1, 0, stitched, offset1, bin1.length);
-        System.arraycopy(bin2, 0, stitched, offset2, bin2.length);
-        System.arraycopy(bin3, 0, stitched, offset3, bin3.length);
-        System.arraycopy(bin4, 0, stitched, offset4, bin4.length);
-
-        // Write output
-        Files.write(Paths.get("stitched_output.bin"), stitched);
-        System.out.println("✔ Binaries stitched successfully into stitched_output.bin");
+    /**
+     * One file of the layout
+     */
+    public static class Entry {
+        public final Path file;
+        public long offset;          // -1 to place the file after the previous entry
+        public final long alignment;
+        public final byte fill;
+        public long size;            // File size, known once the layout is resolved
+
+        public Entry(Path file, long offset, long alignment, byte fill) {
+            this.file = file;
+            this.offset = offset;
+            this.alignment = alignment;
+            this.fill = fill;
+        }
+
+        /**
+         * @return End of the entry including its alignment padding
+         */
+        public long end() {
+            return alignUp(offset + size, alignment);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s at 0x%08X (%d bytes)", file, offset, size);
+        }
+    }
+
+    public static void main(String[] args) {
+        args = Metrics.init("StitchBinaries", args);
+        if (args.length > 2) {
+            System.err.println("Usage: java StitchBinaries [--metrics <file>] [-q] [<layout manifest> [<output>]]");
+            System.err.println("Manifest lines: <file> <offset|+> [align=<n>] [fill=<byte>]");
+            System.err.println("Example: java StitchBinaries layout.txt stitched_output.bin");
+            System.exit(1);
+        }
+
+        try {
+            List<Entry> layout = args.length > 0 ? parseManifest(Paths.get(args[0])) : defaultLayout();
+            Path output = Paths.get(args.length > 1 ? args[1] : "stitched_output.bin");
+
+            long size = Metrics.time("stitch", () -> stitch(layout, output));
+            Metrics.count("binaries", layout.size());
+            Metrics.count("output_bytes", size);
+            Metrics.info(String.format("✔ Binaries stitched successfully into %s (%d bytes)", output, size));
+
+            Metrics.run("manifest", () -> ImageManifest.create(output, layout, ImageManifest.DEFAULT_BLOCK_SIZE,
+                    Runtime.getRuntime().availableProcessors()));
+            Metrics.info("Checksums written to " + ImageManifest.manifestFor(output));
+
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return The Wildcat boot layout
+     */
+    public static List<Entry> defaultLayout() {
+        List<Entry> layout = new ArrayList<>();
+        layout.add(new Entry(Paths.get("ZSBL.bin"), 0x00000000, 1, (byte) 0));              // 0MB
+        layout.add(new Entry(Paths.get("wildcat.dtb"), 0x00100000, 1, (byte) 0));           // 1MB
+        layout.add(new Entry(Paths.get("Exception_Handler.bin"), 0x00300000, 1, (byte) 0)); // 3MB
+        layout.add(new Entry(Paths.get("Image.bin"), 0x00400000, 1, (byte) 0));             // 4MB
+        return layout;
+    }
+
+    /**
+     * Read a layout manifest
+     * @param manifest Manifest file
+     * @return Entries in manifest order
+     * @throws IOException If the manifest cannot be read or is malformed
+     */
+    public static List<Entry> parseManifest(Path manifest) throws IOException {
+        List<Entry> layout = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest)) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            String[] fields = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (fields[0].isEmpty()) {
+                continue;
+            }
+            try {
+                if (fields.length < 2) {
+                    throw new IllegalArgumentException("missing offset");
+                }
+                long offset = -1;
+                if (!fields[1].equals("+")) {
+                    offset = parseNumber(fields[1]);
+                    if (offset < 0) {
+                        throw new IllegalArgumentException("negative offset " + fields[1]);
+                    }
+                }
+                long alignment = 1;
+                long fill = 0;
+                for (int i = 2; i < fields.length; i++) {
+                    if (fields[i].startsWith("align=")) {
+                        alignment = parseNumber(fields[i].substring(6));
+                    } else if (fields[i].startsWith("fill=")) {
+                        fill = parseNumber(fields[i].substring(5));
+                    } else {
+                        throw new IllegalArgumentException("unknown option " + fields[i]);
+                    }
+                }
+                if (alignment < 1) {
+                    throw new IllegalArgumentException("invalid alignment " + alignment);
+                }
+                if (fill < 0 || fill > 0xFF) {
+                    throw new IllegalArgumentException("fill is not a byte value");
+                }
+                if (offset >= 0 && offset % alignment != 0) {
+                    throw new IllegalArgumentException("offset is not aligned");
+                }
+                layout.add(new Entry(Paths.get(fields[0]), offset, alignment, (byte) fill));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(manifest + ":" + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Parse a decimal or 0x-prefixed hex number with an optional K, M or G suffix
+     */
+    static long parseNumber(String value) {
+        String number = value.replace("_", "").toUpperCase();
+        int shift = 0;
+        if (number.endsWith("K") || number.endsWith("M") || number.endsWith("G")) {
+            shift = number.endsWith("K") ? 10 : number.endsWith("M") ? 20 : 30;
+            number = number.substring(0, number.length() - 1);
+        }
+        long parsed = number.startsWith("0X") ? Long.parseLong(number.substring(2), 16) : Long.parseLong(number);
+        return parsed << shift;
+    }
+
+    static long alignUp(long value, long alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * Place the entries at their offsets and check that none of them overlap
+     * @param layout Entries, their sizes and missing offsets are filled in
+     * @return Entries sorted by offset
+     * @throws IOException If an input is missing or two entries overlap
+     */
+    public static List<Entry> resolveLayout(List<Entry> layout) throws IOException {
+        long previousEnd = 0;
+        for (Entry entry : layout) {
+            entry.size = Files.size(entry.file);
+            if (entry.offset < 0) {
+                entry.offset = alignUp(previousEnd, entry.alignment);
+            }
+            previousEnd = entry.end();
+        }
+
+        List<Entry> sorted = new ArrayList<>(layout);
+        sorted.sort(Comparator.comparingLong(entry -> entry.offset));
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).offset < sorted.get(i - 1).end()) {
+                throw new IOException(sorted.get(i - 1) + " overlaps " + sorted.get(i));
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Stitch the entries of a layout into one image
+     * @param layout Entries to place
+     * @param output Image to write
+     * @return Size of the image
+     * @throws IOException If an input cannot be read, entries overlap or the image cannot be written
+     */
+    public static long stitch(List<Entry> layout, Path output) throws IOException {
+        List<Entry> sorted = resolveLayout(layout);
+        long totalSize = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1).end();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(sorted.size(), Runtime.getRuntime().availableProcessors())));
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE)) {
+            // Size the file first, transferFrom does not write beyond its end. The rest stays a hole
+            if (totalSize > 0) {
+                out.write(ByteBuffer.allocate(1), totalSize - 1);
+            }
+
+            List<Future<Void>> copies = new ArrayList<>();
+            for (Entry entry : sorted) {
+                copies.add(executor.submit(() -> {
+                    copy(entry, out);
+                    return null;
+                }));
+            }
+            for (Future<Void> copy : copies) {
+                copy.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Stitching interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        return totalSize;
+    }
+
+    /**
+     * Stitch the entries of a layout directly into memory, e.g. for the ISA simulator. Only the
+     * pages holding non-zero bytes are allocated.
+     * @param layout Entries to place
+     * @param memory Memory receiving the image
+     * @param baseAddress Address of offset 0 of the layout
+     * @return Size of the image
+     * @throws IOException If an input cannot be read, entries overlap or the image does not fit the memory
+     */
+    public static long stitch(List<Entry> layout, SparseMemoryImage memory, long baseAddress) throws IOException {
+        List<Entry> sorted = resolveLayout(layout);
+        long totalSize = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1).end();
+        if (baseAddress < 0 || baseAddress + totalSize > memory.getSize()) {
+            throw new IOException(String.format("Image of %d bytes at 0x%X does not fit the memory", totalSize, baseAddress));
+        }
+        for (Entry entry : sorted) {
+            try (FileChannel in = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+                memory.load(baseAddress + entry.offset, in.map(FileChannel.MapMode.READ_ONLY, 0, entry.size));
+            }
+            long padding = entry.end() - (entry.offset + entry.size);
+            if (padding > 0 && entry.fill != 0) {
+                memory.fill(baseAddress + entry.offset + entry.size, padding, entry.fill);
+            }
+        }
+        return totalSize;
+    }
+
+    private static void copy(Entry entry, FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+            long copied = 0;
+            while (copied < entry.size) {
+                long transferred = out.transferFrom(in, entry.offset + copied, entry.size - copied);
+                if (transferred <= 0) {
+                    throw new IOException(entry.file + " ended early");
+                }
+                copied += transferred;
+            }
+        }
+
+        // Zero padding stays a hole, other fill bytes are written
+        long padding = entry.end() - (entry.offset + entry.size);
+        if (padding > 0 && entry.fill != 0) {
+            byte[] fill = new byte[(int) Math.min(padding, 64 * 1024)];
+            Arrays.fill(fill, entry.fill);
+            for (long position = entry.offset + entry.size; position < entry.end(); ) {
+                ByteBuffer buffer = ByteBuffer.wrap(fill, 0, (int) Math.min(fill.length, entry.end() - position));
+                position += out.write(buffer, position);
+            }
+        }
     }
 }
@@ -0,0 +1,411 @@
+package software;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Dynamic counterpart of the {@link RiscVOpcodeScanner} report: streams a trace written by
+ * {@link TraceWriter} and counts the executed instruction classes, the CSR accesses and the
+ * loads and stores, and finds the hottest PCs.
+ * <p>
+ * Memory use does not depend on the trace length. The hot PCs are tracked with the space-saving
+ * algorithm in a fixed number of counters: every PC executed more often than the instruction
+ * count divided by the capacity is guaranteed to be tracked, and a reported count overestimates
+ * the true count by at most its error.
+ */
+public class TraceAnalyzer {
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int DEFAULT_TOP = 32;
+    private static final int READ_BUFFER = 1 << 20;
+
+    final long[] classCounts = new long[RiscVDecoder.NUM_INSTR_CLASSES];
+    // Indexed by CSR address * 2, odd entries count writes
+    final long[] csrCounts = new long[RiscVDecoder.NUM_CSRS * 2];
+    // Indexed by size (1, 2, 4) * 2, odd entries count stores
+    final long[] memoryCounts = new long[10];
+    final HotPcs hotPcs;
+    long instructions = 0;
+    long jumps = 0;
+    long recordedInstructions = -1;
+
+    public TraceAnalyzer(int capacity) {
+        hotPcs = new HotPcs(capacity);
+    }
+
+    public static void main(String[] args) {
+        args = Metrics.init("TraceAnalyzer", args);
+        int capacity = DEFAULT_CAPACITY;
+        int top = DEFAULT_TOP;
+        String traceFile = null;
+        String reportFile = "trace_report.txt";
+        int files = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--capacity") && i + 1 < args.length) {
+                    capacity = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--top") && i + 1 < args.length) {
+                    top = Integer.parseInt(args[++i]);
+                } else if (files == 0) {
+                    traceFile = args[i];
+                    files++;
+                } else if (files == 1) {
+                    reportFile = args[i];
+                    files++;
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+            if (traceFile == null || capacity < 1 || top < 1) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: java TraceAnalyzer [--capacity <counters>] [--top <pcs>] [--metrics <file>] [-q] <trace> [<report>]");
+            System.err.println("  --capacity  PCs tracked for the hot PC list (default " + DEFAULT_CAPACITY + ")");
+            System.err.println("  --top       hot PCs reported (default " + DEFAULT_TOP + ")");
+            System.err.println("Example: java TraceAnalyzer sim.trace trace_report.txt");
+            System.exit(1);
+        }
+
+        try {
+            TraceAnalyzer analyzer = new TraceAnalyzer(capacity);
+            Path trace = Paths.get(traceFile);
+            Metrics.run("analyze", () -> analyzer.analyze(trace));
+            Metrics.count("trace_bytes", new File(traceFile).length());
+            Metrics.count("instructions", analyzer.instructions);
+            Metrics.Phase phase = Metrics.phase("report");
+            try (phase; PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)))) {
+                analyzer.writeReport(writer, top);
+            }
+            Metrics.info("Results written to " + new File(reportFile).getAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Add the records of a trace to the counters
+     * @param trace Trace written by {@link TraceWriter}
+     * @throws IOException If the trace cannot be read or is malformed
+     */
+    public void analyze(Path trace) throws IOException {
+        try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+            Reader in = new Reader(channel);
+            if (in.intLE() != TraceWriter.MAGIC || in.intLE() != TraceWriter.VERSION) {
+                throw new IOException("Not a trace (version " + TraceWriter.VERSION + ")");
+            }
+            in.intLE(); // flags, the events tell for themselves
+            in.intLE();
+
+            int nextPc = 0;
+            while (in.more()) {
+                long record = in.varint();
+                int low = (int) record & TraceWriter.EVENT;
+                if (low != TraceWriter.EVENT) {
+                    if (low >= classCounts.length) {
+                        throw new IOException("Unknown instruction class " + low + " in trace");
+                    }
+                    int zigzag = (int) (record >>> TraceWriter.CLASS_BITS);
+                    int delta = zigzag >>> 1 ^ -(zigzag & 1);
+                    int pc = nextPc + delta;
+                    if (delta != 0) {
+                        jumps++;
+                    }
+                    classCounts[low]++;
+                    hotPcs.offer(pc);
+                    instructions++;
+                    nextPc = pc + 4;
+                    continue;
+                }
+                switch ((int) (record >>> TraceWriter.CLASS_BITS)) {
+                    case TraceWriter.EVENT_CSR:
+                        csrCounts[(int) in.varint() & 0x1FFF]++;
+                        break;
+                    case TraceWriter.EVENT_LOAD:
+                    case TraceWriter.EVENT_STORE: {
+                        int size = in.get();
+                        if (size != 1 && size != 2 && size != 4) {
+                            throw new IOException("Bad access size " + size + " in trace");
+                        }
+                        memoryCounts[size * 2 + (record >>> TraceWriter.CLASS_BITS == TraceWriter.EVENT_STORE ? 1 : 0)]++;
+                        in.varint();
+                        in.varint();
+                        break;
+                    }
+                    case TraceWriter.EVENT_END:
+                        recordedInstructions = in.varint();
+                        break;
+                    default:
+                        throw new IOException("Unknown trace event " + (record >>> TraceWriter.CLASS_BITS));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the histograms and the hot PCs
+     * @param writer Report destination
+     * @param top Number of hot PCs listed
+     */
+    public void writeReport(PrintWriter writer, int top) {
+        writer.println("=== RISC-V Execution Trace ===");
+        writer.println("Instructions executed: " + instructions);
+        writer.println("Non-sequential PCs: " + jumps);
+        if (recordedInstructions != instructions) {
+            writer.println("Warning: the trace is incomplete, it has no end record or a different count");
+        }
+
+        writer.println("\nInstruction Class\tCount\tShare");
+        writer.println("-----------------\t-----\t-----");
+        for (RiscVDecoder.InstrClass instrClass : RiscVDecoder.INSTR_CLASSES) {
+            long count = classCounts[instrClass.ordinal()];
+            writer.printf("%s\t%d\t%.2f%%%n", instrClass, count, share(count, instructions));
+        }
+
+        writer.println("\nCSR Address\tReads\tWrites\tPrivilege Level\tAccessibility");
+        writer.println("-----------\t-----\t------\t---------------\t-------------");
+        for (int csr = 0; csr < RiscVDecoder.NUM_CSRS; csr++) {
+            long reads = csrCounts[csr * 2];
+            long writes = csrCounts[csr * 2 + 1];
+            if (reads + writes > 0) {
+                writer.printf("0x%03X\t%d\t%d\t%s\t%s%n", csr, reads, writes,
+                        RiscVDecoder.getPrivilegeLevel(csr), RiscVDecoder.getAccessibility(csr));
+            }
+        }
+
+        writer.println("\nMemory Access\tLoads\tStores");
+        writer.println("-------------\t-----\t------");
+        for (int size = 1; size <= 4; size *= 2) {
+            writer.printf("%d byte\t%d\t%d%n", size, memoryCounts[size * 2], memoryCounts[size * 2 + 1]);
+        }
+
+        long[] entries = hotPcs.sorted();
+        writer.printf("%nHot PCs (top %d, counts overestimate by at most the error)%n", Math.min(top, entries.length / 3));
+        writer.println("PC\tCount\tError\tShare");
+        writer.println("--\t-----\t-----\t-----");
+        for (int i = 0; i < top && i * 3 < entries.length; i++) {
+            long count = entries[i * 3 + 1];
+            writer.printf("0x%08X\t%d\t%d\t%.2f%%%n", entries[i * 3], count, entries[i * 3 + 2], share(count, instructions));
+        }
+    }
+
+    private static double share(long count, long total) {
+        return total == 0 ? 0.0 : 100.0 * count / total;
+    }
+
+    // Buffered reader of the trace, refilled whenever less than a record is left
+    private static class Reader {
+        private static final int MAX_RECORD = 16;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        private final byte[] data = buffer.array();
+        private int position = 0;
+        private int limit = 0;
+        private boolean eof = false;
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean more() throws IOException {
+            if (limit - position < MAX_RECORD && !eof) {
+                System.arraycopy(data, position, data, 0, limit - position);
+                limit -= position;
+                position = 0;
+                buffer.clear().position(limit);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                limit = buffer.position();
+            }
+            return position < limit;
+        }
+
+        int get() throws IOException {
+            if (!more()) {
+                throw new EOFException("Trace ends inside a record");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        int intLE() throws IOException {
+            return get() | get() << 8 | get() << 16 | get() << 24;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in trace");
+        }
+    }
+
+    /**
+     * Space-saving top-k counters: a min-heap of the tracked PCs by count, found through an
+     * open addressing table. An untracked PC replaces the least counted one and inherits its
+     * count as the error.
+     */
+    static class HotPcs {
+        private final int capacity;
+        private final int[] pcs;
+        private final long[] counts;
+        private final long[] errors;
+        private final int[] tableIndex;
+        private final int[] keys;
+        private final int[] heapIndex;
+        private final int mask;
+        private int size = 0;
+
+        HotPcs(int capacity) {
+            this.capacity = capacity;
+            pcs = new int[capacity];
+            counts = new long[capacity];
+            errors = new long[capacity];
+            tableIndex = new int[capacity];
+            int tableSize = Integer.highestOneBit(capacity * 4 - 1) << 1;
+            keys = new int[tableSize];
+            heapIndex = new int[tableSize];
+            Arrays.fill(heapIndex, -1);
+            mask = tableSize - 1;
+        }
+
+        void offer(int pc) {
+            int slot = hash(pc);
+            while (heapIndex[slot] >= 0) {
+                if (keys[slot] == pc) {
+                    int node = heapIndex[slot];
+                    counts[node]++;
+                    siftDown(node);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int node;
+            if (size < capacity) {
+                node = size++;
+                errors[node] = 0;
+                counts[node] = 1;
+            } else {
+                // Replace the least counted PC at the root
+                node = 0;
+                remove(tableIndex[0]);
+                errors[node] = counts[node];
+                counts[node]++;
+                // The removal may have shifted the free slot
+                slot = hash(pc);
+                while (heapIndex[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            pcs[node] = pc;
+            keys[slot] = pc;
+            heapIndex[slot] = node;
+            tableIndex[node] = slot;
+            siftUp(node);
+            siftDown(node);
+        }
+
+        /**
+         * @return PC, count and error triples by decreasing count
+         */
+        long[] sorted() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> counts[a] != counts[b] ? Long.compare(counts[b], counts[a])
+                    : Integer.compareUnsigned(pcs[a], pcs[b]));
+            long[] result = new long[size * 3];
+            for (int i = 0; i < size; i++) {
+                result[i * 3] = pcs[order[i]] & 0xFFFFFFFFL;
+                result[i * 3 + 1] = counts[order[i]];
+                result[i * 3 + 2] = errors[order[i]];
+            }
+            return result;
+        }
+
+        private int hash(int pc) {
+            return (pc >>> 2) * 0x9E3779B1 >>> 7 & mask;
+        }
+
+        // Backward shift deletion keeps the probe sequences intact without tombstones
+        private void remove(int slot) {
+            int hole = slot;
+            heapIndex[hole] = -1;
+            int next = hole;
+            while (true) {
+                next = (next + 1) & mask;
+                if (heapIndex[next] < 0) {
+                    return;
+                }
+                int home = hash(keys[next]);
+                boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!stays) {
+                    keys[hole] = keys[next];
+                    heapIndex[hole] = heapIndex[next];
+                    tableIndex[heapIndex[hole]] = hole;
+                    heapIndex[next] = -1;
+                    hole = next;
+                }
+            }
+        }
+
+        private void siftUp(int node) {
+            while (node > 0) {
+                int parent = (node - 1) / 2;
+                if (counts[parent] <= counts[node]) {
+                    return;
+                }
+                swap(node, parent);
+                node = parent;
+            }
+        }
+
+        private void siftDown(int node) {
+            while (true) {
+                int child = node * 2 + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && counts[child + 1] < counts[child]) {
+                    child++;
+                }
+                if (counts[node] <= counts[child]) {
+                    return;
+                }
+                swap(node, child);
+                node = child;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int pc = pcs[a];
+            pcs[a] = pcs[b];
+            pcs[b] = pc;
+            long count = counts[a];
+            counts[a] = counts[b];
+            counts[b] = count;
+            long error = errors[a];
+            errors[a] = errors[b];
+            errors[b] = error;
+            int slot = tableIndex[a];
+            tableIndex[a] = tableIndex[b];
+            tableIndex[b] = slot;
+            heapIndex[tableIndex[a]] = a;
+            heapIndex[tableIndex[b]] = b;
+        }
+    }
+}
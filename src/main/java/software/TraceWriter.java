@@ -0,0 +1,258 @@
+package software;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes a compact binary execution trace of the ISA simulator, read by {@link TraceAnalyzer}.
+ * <p>
+ * Every executed instruction is one unsigned LEB128 varint holding the zigzag-encoded difference
+ * of its PC to the PC after the previous instruction, shifted left by 5, and its
+ * {@link RiscVDecoder.InstrClass} ordinal in the low 5 bits. Sequential instructions take a
+ * single byte. The low bits {@link #EVENT} mark an event instead, its kind above them:
+ * a CSR access followed by a varint of the CSR address shifted left by one with the write flag
+ * in bit 0, a load or store followed by the access size byte and varints of the address and
+ * value, and the end of the trace followed by a varint of the instruction count.
+ * <p>
+ * The file starts with a 16-byte little endian header (magic, version, flags, reserved), the
+ * first PC is encoded relative to address 0.
+ * The simulator thread encodes into a few buffers that a background thread writes to the file.
+ */
+public class TraceWriter implements AutoCloseable {
+    static final int MAGIC = 0x52545357; // "WSTR"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int FLAG_CSR = 1;
+    static final int FLAG_MEMORY = 2;
+
+    static final int CLASS_BITS = 5;
+    static final int EVENT = (1 << CLASS_BITS) - 1;
+    static final int EVENT_CSR = 0;
+    static final int EVENT_LOAD = 1;
+    static final int EVENT_STORE = 2;
+    static final int EVENT_END = 3;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int BUFFERS = 4;
+    // Largest record: event tag, size byte and two 5-byte varints
+    private static final int MAX_RECORD = 12;
+
+    // A filled buffer, or the end of the stream when length is -1
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final FileChannel channel;
+    private final boolean csrEvents;
+    private final boolean memoryEvents;
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(BUFFERS + 1);
+    private final Thread writer;
+    private volatile IOException error;
+
+    private Chunk chunk;
+    private byte[] data;
+    private int position;
+    private int nextPc = 0;
+    private long instructions = 0;
+
+    /**
+     * Create the trace file and start the writer thread
+     * @param file Trace to create or replace
+     * @param csrEvents Record CSR accesses
+     * @param memoryEvents Record loads and stores
+     * @throws IOException If the file cannot be created
+     */
+    public TraceWriter(Path file, boolean csrEvents, boolean memoryEvents) throws IOException {
+        this.csrEvents = csrEvents;
+        this.memoryEvents = memoryEvents;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new Chunk(BUFFER_SIZE));
+        }
+        chunk = free.poll();
+        data = chunk.data;
+        putIntLE(0, MAGIC);
+        putIntLE(4, VERSION);
+        putIntLE(8, (csrEvents ? FLAG_CSR : 0) | (memoryEvents ? FLAG_MEMORY : 0));
+        position = HEADER_BYTES;
+
+        writer = new Thread(this::write, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean isRecordingCSR() {
+        return csrEvents;
+    }
+
+    public boolean isRecordingMemory() {
+        return memoryEvents;
+    }
+
+    /**
+     * @return Number of instructions recorded so far
+     */
+    public long getInstructionCount() {
+        return instructions;
+    }
+
+    /**
+     * Record an executed instruction
+     * @param pc Address of the instruction
+     * @param instr Instruction word
+     */
+    public void instruction(int pc, int instr) throws IOException {
+        if (position > data.length - MAX_RECORD) {
+            handOff();
+        }
+        int delta = pc - nextPc;
+        long zigzag = ((long) (delta << 1 ^ delta >> 31) & 0xFFFFFFFFL) << CLASS_BITS;
+        putVarint(zigzag | RiscVDecoder.classify32(instr));
+        nextPc = pc + 4;
+        instructions++;
+    }
+
+    /**
+     * Record a CSR access of the last instruction, ignored unless CSR events are recorded
+     */
+    public void csr(int csrAddress, boolean write) throws IOException {
+        if (!csrEvents) {
+            return;
+        }
+        if (position > data.length - MAX_RECORD) {
+            handOff();
+        }
+        putVarint(EVENT_CSR << CLASS_BITS | EVENT);
+        putVarint((csrAddress & 0xFFF) << 1 | (write ? 1 : 0));
+    }
+
+    /**
+     * Record a load or store of the last instruction, ignored unless memory events are recorded
+     * @param write Store instead of load
+     * @param address Byte address
+     * @param size Access size in bytes
+     * @param value Value loaded or stored
+     */
+    public void memory(boolean write, int address, int size, int value) throws IOException {
+        if (!memoryEvents) {
+            return;
+        }
+        if (position > data.length - MAX_RECORD) {
+            handOff();
+        }
+        putVarint((write ? EVENT_STORE : EVENT_LOAD) << CLASS_BITS | EVENT);
+        data[position++] = (byte) size;
+        putVarint(address & 0xFFFFFFFFL);
+        putVarint(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Write the end record, wait for the writer thread and close the file
+     * @throws IOException If writing the trace failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (position > data.length - MAX_RECORD) {
+                handOff();
+            }
+            putVarint(EVENT_END << CLASS_BITS | EVENT);
+            putVarint(instructions);
+            chunk.length = position;
+            filled.put(chunk);
+            Chunk end = new Chunk(0);
+            end.length = -1;
+            filled.put(end);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+            throw new InterruptedIOException("Trace interrupted");
+        } finally {
+            channel.close();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void handOff() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        try {
+            chunk.length = position;
+            filled.put(chunk);
+            chunk = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Trace interrupted");
+        }
+        data = chunk.data;
+        position = 0;
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Chunk next = filled.take();
+                if (next.length < 0) {
+                    break;
+                }
+                ByteBuffer view = ByteBuffer.wrap(next.data, 0, next.length);
+                while (view.hasRemaining()) {
+                    channel.write(view);
+                }
+                free.put(next);
+            }
+        } catch (IOException e) {
+            error = e;
+            // Keep the simulator going, it sees the error at its next hand-off
+            drain();
+        } catch (InterruptedException e) {
+            // The trace was aborted
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Chunk next = filled.take();
+                if (next.length < 0) {
+                    return;
+                }
+                free.put(next);
+            }
+        } catch (InterruptedException e) {
+            // The trace was aborted
+        }
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+    }
+
+    private void putIntLE(int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,27 @@
+package software;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Byte sink the {@link Uploader} streams the bootloader protocol into, e.g. a serial port
+ * or the in-memory {@link LoopbackPort}.
+ */
+public interface UploadPort extends Closeable {
+
+    /**
+     * Write all bytes of a buffer range, blocking until they are accepted
+     * @throws IOException If the port fails or is closed
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Wait until all written bytes have left the host
+     */
+    default void flush() throws IOException {
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,337 @@
+package software;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams an image to the bootloader. The protocol is the one of bootloader.SendUART: every
+ * non-zero 32-bit word is sent as a record of its address (4 bytes, little endian) and its
+ * 4 data bytes in memory order, all-zero words are skipped unless requested. The bootloader is finally put to
+ * sleep with a fixed 16-byte command.
+ * <p>
+ * A producer thread assembles the records into a few large buffers while the calling thread
+ * writes the filled ones to the {@link UploadPort}, so the port is kept busy with large
+ * writes instead of two 4-byte writes per word. Progress is reported per buffer.
+ */
+public class Uploader {
+    public static final int RECORD_BYTES = 8;
+
+    // Records 0xF0010000 = 0x000000FF (LEDs) and 0xF1000000 = 0x00000001 (bootloader sleep)
+    public static final byte[] BOOTLOADER_SLEEP = {
+            0x00, 0x00, 0x01, (byte) 0xF0, (byte) 0xFF, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, (byte) 0xF1, 0x01, 0x00, 0x00, 0x00
+    };
+
+    private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    private static final int BUFFERS = 4;
+
+    /**
+     * Receives the progress of an upload, called on the uploading thread after every buffer
+     */
+    public interface Progress {
+        /**
+         * @param done Image bytes processed
+         * @param total Image bytes to process
+         * @param records Records sent
+         */
+        void update(long done, long total, long records);
+    }
+
+    // A buffer of records, or the end of the stream when length is -1
+    private static class Chunk {
+        final byte[] data;
+        int length;
+        long done;
+        long records;
+        Throwable error;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final UploadPort port;
+    private final int bufferSize;
+    private Progress progress = null;
+    private boolean sendZeros = false;
+
+    public Uploader(UploadPort port) {
+        this(port, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param port Destination of the protocol bytes
+     * @param bufferSize Size of the record buffers in bytes, rounded down to whole records
+     */
+    public Uploader(UploadPort port, int bufferSize) {
+        this.port = port;
+        this.bufferSize = Math.max(RECORD_BYTES, bufferSize / RECORD_BYTES * RECORD_BYTES);
+    }
+
+    public void setProgress(Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Also send the all-zero words, needed when memory that held data before is overwritten
+     */
+    public void setSendZeros(boolean sendZeros) {
+        this.sendZeros = sendZeros;
+    }
+
+    /**
+     * Send a binary image
+     * @param file Image, loaded from the base address on
+     * @param baseAddress Address of the first byte of the image
+     * @return Number of records sent
+     * @throws IOException If the file cannot be read or the port fails
+     */
+    public long sendFile(Path file, long baseAddress) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return sendRanges(image, baseAddress, new long[]{0, image.limit()});
+        }
+    }
+
+    /**
+     * Send ranges of an image
+     * @param image Image bytes, position 0 is the base address
+     * @param baseAddress Address of the first byte of the image
+     * @param ranges Ascending [from, to) byte offset pairs, word aligned except for the image end
+     * @return Number of records sent
+     * @throws IOException If the port fails
+     */
+    public long sendRanges(ByteBuffer image, long baseAddress, long[] ranges) throws IOException {
+        ByteBuffer words = image.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long total = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            total += ranges[i + 1] - ranges[i];
+        }
+
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(BUFFERS);
+        BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(BUFFERS + 1);
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new Chunk(bufferSize));
+        }
+
+        long totalBytes = total;
+        Thread producer = new Thread(() -> produce(words, baseAddress, ranges, free, filled), "upload-producer");
+        producer.setDaemon(true);
+        producer.start();
+
+        long records = 0;
+        try {
+            while (true) {
+                Chunk chunk = filled.take();
+                if (chunk.error != null) {
+                    throw new IOException("Preparing the upload failed", chunk.error);
+                }
+                if (chunk.length < 0) {
+                    break;
+                }
+                port.write(chunk.data, 0, chunk.length);
+                records = chunk.records;
+                if (progress != null) {
+                    progress.update(chunk.done, totalBytes, records);
+                }
+                free.put(chunk);
+            }
+            port.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload interrupted");
+        } finally {
+            producer.interrupt();
+        }
+        return records;
+    }
+
+    private void produce(ByteBuffer image, long baseAddress, long[] ranges,
+                         BlockingQueue<Chunk> free, BlockingQueue<Chunk> filled) {
+        try {
+            long done = 0;
+            long records = 0;
+            Chunk chunk = free.take();
+            int position = 0;
+            for (int r = 0; r < ranges.length; r += 2) {
+                int from = (int) ranges[r];
+                int to = (int) ranges[r + 1];
+                for (int offset = from; offset < to; offset += 4) {
+                    int word;
+                    if (offset + 4 <= image.limit()) {
+                        word = image.getInt(offset);
+                    } else {
+                        // Zero pad a trailing partial word
+                        word = 0;
+                        for (int i = 0; offset + i < image.limit(); i++) {
+                            word |= (image.get(offset + i) & 0xFF) << (i * 8);
+                        }
+                    }
+                    if (word == 0 && !sendZeros) {
+                        continue;
+                    }
+                    if (position == chunk.data.length) {
+                        chunk.length = position;
+                        chunk.done = done + offset - from;
+                        chunk.records = records;
+                        filled.put(chunk);
+                        chunk = free.take();
+                        position = 0;
+                    }
+                    int address = (int) (baseAddress + offset);
+                    byte[] data = chunk.data;
+                    data[position] = (byte) address;
+                    data[position + 1] = (byte) (address >>> 8);
+                    data[position + 2] = (byte) (address >>> 16);
+                    data[position + 3] = (byte) (address >>> 24);
+                    data[position + 4] = (byte) word;
+                    data[position + 5] = (byte) (word >>> 8);
+                    data[position + 6] = (byte) (word >>> 16);
+                    data[position + 7] = (byte) (word >>> 24);
+                    position += RECORD_BYTES;
+                    records++;
+                }
+                done += to - from;
+            }
+            chunk.length = position;
+            chunk.done = done;
+            chunk.records = records;
+            filled.put(chunk);
+
+            Chunk end = new Chunk(0);
+            end.length = -1;
+            filled.put(end);
+        } catch (InterruptedException e) {
+            // The upload was aborted
+        } catch (Throwable e) {
+            Chunk failed = new Chunk(0);
+            failed.error = e;
+            filled.offer(failed);
+        }
+    }
+
+    /**
+     * Put the bootloader to sleep and let the core run
+     * @throws IOException If the port fails
+     */
+    public void sendSleep() throws IOException {
+        port.write(BOOTLOADER_SLEEP, 0, BOOTLOADER_SLEEP.length);
+        port.flush();
+    }
+
+    /**
+     * @return Progress printed on one console line, at most five times a second
+     */
+    public static Progress consoleProgress() {
+        if (!Metrics.isNormal()) {
+            return (done, total, records) -> { };
+        }
+        long start = System.nanoTime();
+        long[] last = {0};
+        return (done, total, records) -> {
+            long now = System.nanoTime();
+            if (now - last[0] < 200_000_000L && done < total) {
+                return;
+            }
+            last[0] = now;
+            double seconds = Math.max(1e-9, (now - start) / 1e9);
+            System.out.printf("\rUploaded %3d%% (%d records, %.1f KB/s)", total == 0 ? 100 : done * 100 / total,
+                    records, records * RECORD_BYTES / 1024.0 / seconds);
+            if (done == total) {
+                System.out.println();
+            }
+        };
+    }
+
+    /**
+     * Upload into a loopback port and check the received protocol against the image
+     */
+    public static void main(String[] args) {
+        args = Metrics.init("Uploader", args);
+        long baudRate = 0;
+        int first = 0;
+        if (args.length > 1 && args[0].equals("--baud")) {
+            baudRate = Long.parseLong(args[1]);
+            first = 2;
+        }
+        if (args.length - first < 1 || args.length - first > 2) {
+            System.err.println("Usage: java Uploader [--baud <rate>] [--metrics <file>] [-q] <stitched_output.bin> [<base-Address>]");
+            System.err.println("Uploads into an in-memory loopback port and verifies the received records.");
+            System.err.println("Example: java Uploader --baud 115200 stitched_output.bin 0x0");
+            System.exit(1);
+        }
+
+        try {
+            Path file = Paths.get(args[first]);
+            long baseAddress = args.length - first > 1
+                    ? Long.parseUnsignedLong(args[first + 1].replace("_", "").replaceFirst("^0[xX]", ""), 16) : 0;
+
+            LoopbackPort port = new LoopbackPort(true, baudRate);
+            Uploader uploader = new Uploader(port);
+            uploader.setProgress(consoleProgress());
+            long start = System.nanoTime();
+            long records = Metrics.time("upload", () -> {
+                long sent = uploader.sendFile(file, baseAddress);
+                uploader.sendSleep();
+                return sent;
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Metrics.count("records", records);
+            Metrics.count("protocol_bytes", port.getByteCount());
+            Metrics.count("writes", port.getWriteCount());
+
+            Metrics.info(String.format("Sent %d records (%d bytes) in %d writes, %.3f s",
+                    records, port.getByteCount(), port.getWriteCount(), seconds));
+            boolean verified = Metrics.time("verify", () -> verify(port.toByteArray(), file, baseAddress));
+            if (verified) {
+                Metrics.info("Protocol verified");
+            } else {
+                System.out.println("Protocol MISMATCH");
+            }
+
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid base address format. Use 0x prefix for hex.");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Check that a received stream holds exactly the non-zero words of an image, in order,
+     * followed by the sleep command
+     */
+    static boolean verify(byte[] received, Path file, long baseAddress) throws IOException {
+        ByteBuffer stream = ByteBuffer.wrap(received).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            int position = 0;
+            for (int offset = 0; offset < image.limit(); offset += 4) {
+                int word = 0;
+                for (int i = 0; i < 4 && offset + i < image.limit(); i++) {
+                    word |= (image.get(offset + i) & 0xFF) << (i * 8);
+                }
+                if (word == 0) {
+                    continue;
+                }
+                if (position + RECORD_BYTES > received.length
+                        || stream.getInt(position) != (int) (baseAddress + offset)
+                        || stream.getInt(position + 4) != word) {
+                    return false;
+                }
+                position += RECORD_BYTES;
+            }
+            return received.length == position + BOOTLOADER_SLEEP.length
+                    && ByteBuffer.wrap(BOOTLOADER_SLEEP).equals(ByteBuffer.wrap(received, position, BOOTLOADER_SLEEP.length));
+        }
+    }
+}
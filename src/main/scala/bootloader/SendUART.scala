@@ -9,10 +9,11 @@ package bootloader
 import com.fazecast.jSerialComm._
 import os.FileType.File
 
-import java.io.File
+import java.io.{File, PrintWriter}
 import java.nio.ByteBuffer
+import software.{DeltaUpload, ImageManifest, Uploader}
 import scala.io.Source
-import java.nio.file.{Files, Paths}
+import java.nio.file.{Files, Path, Paths}
 /*
 import java.util.HexFormat
 import scala.math.BigInt
@@ -22,10 +23,21 @@ import scala.util.Try
 object SendUART {
   def main(args: Array[String]): Unit = {
     //Make sure we got a file:
-    if (args.length != 1) {
+    val delta = args.length >= 2 && args(0) == "--delta"
+    if (args.length != 1 && !(delta && args.length <= 3)) {
       println("Usage: ReadFileBytes <file-path>")
+      println("       SendUART --delta <stitched_output.bin> [<base address>]")
+      println("  --delta  send only the pages changed since the last upload, remembered in <image>.loaded")
       System.exit(1)
     }
+    val deltaAddr = if (delta && args.length == 3) java.lang.Long.decode(args(2)).toInt else 0
+
+    // Do not upload an image that no longer matches its <image>.crc manifest
+    val uploadPath = Paths.get(if (delta) args(1) else "ZSBL_demo.bin")
+    if (!verifyImage(uploadPath)) {
+      println(s"$uploadPath does not match ${ImageManifest.manifestFor(uploadPath)}, not sent")
+      System.exit(2)
+    }
 
     // Identify available serial ports
     val ports = SerialPort.getCommPorts
@@ -52,30 +64,34 @@ object SendUART {
       System.out.println("Port opened successfully.")
     }
 
-    //Get the bytes of the file to send:
-    val programPath = Paths.get(args(0))
-    val programBytes = Files.readAllBytes(programPath)
-    val zsblPath = Paths.get("ZSBL_demo.bin")
-    val zsblBytes = Files.readAllBytes(zsblPath)
-    val traphandlerPath = Paths.get("Exception_Handler.bin")
-    val traphandlerBytes = Files.readAllBytes(traphandlerPath)
-    val uartTestPath = Paths.get("helloUart.bin")
-    val uartTestBytes = Files.readAllBytes(uartTestPath)
-
-    //Send ZSBL:
-    sendFile(zsblBytes, serialPort, 0x0)
-
-    //Send the program
-    //sendFile(programBytes, serialPort,  0x100)
-
-    //Send exception handler
-    //sendFile(traphandlerBytes, serialPort,  0x00300000)
-
-    //Uart test program
-    //sendFile(uartTestBytes, serialPort,  0x0)
-
-    //Set the bootloader to sleep and stop stalling the wildcat:
-    bootloaderSleep(serialPort)
+    if (delta) {
+      // Sends the bootloader sleep command itself
+      sendDelta(args(1), serialPort, deltaAddr)
+    } else {
+      //Get the bytes of the file to send:
+      val programPath = Paths.get(args(0))
+      val programBytes = Files.readAllBytes(programPath)
+      val zsblBytes = Files.readAllBytes(uploadPath)
+      val traphandlerPath = Paths.get("Exception_Handler.bin")
+      val traphandlerBytes = Files.readAllBytes(traphandlerPath)
+      val uartTestPath = Paths.get("helloUart.bin")
+      val uartTestBytes = Files.readAllBytes(uartTestPath)
+
+      //Send ZSBL:
+      sendFile(zsblBytes, serialPort, 0x0)
+
+      //Send the program
+      //sendFile(programBytes, serialPort,  0x100)
+
+      //Send exception handler
+      //sendFile(traphandlerBytes, serialPort,  0x00300000)
+
+      //Uart test program
+      //sendFile(uartTestBytes, serialPort,  0x0)
+
+      //Set the bootloader to sleep and stop stalling the wildcat:
+      bootloaderSleep(serialPort)
+    }
 
     System.out.println("Data sent.")
     serialPort.closePort  // Make sure to close the SerialPort
@@ -83,27 +99,34 @@ object SendUART {
   }
 
   def sendFile(bytes: Array[Byte], serialPort: SerialPort, startAddr: Int): Unit = {
-    var address = startAddr
-
-    for(i <- 0 until (Math.ceil(bytes.length / 4.0)).toInt){  // Reading 4 bytes at a time
-      val start = i * 4
-      val end = Math.min(start + 4, bytes.length)
-      val chunk = bytes.slice(start, end)
-      val paddedChunk = if (chunk.length < 4) chunk ++ Array.fill[Byte](4 - chunk.length)(0.toByte) else chunk
-
-      if(!(paddedChunk(0) == 0x00 && paddedChunk(1) == 0x00 && paddedChunk(2) == 0x00 && paddedChunk(3) == 0x00)) {
-        val addressBytesPadded = ByteBuffer.allocate(4).putInt(address).array()
-
-        // Write address (4 bytes) little endian (reverse needed)
-        serialPort.writeBytes(addressBytesPadded.reverse, 4)
-        println(addressBytesPadded.map(b => f"0x$b%02X").mkString("Address: (", " ", ")"))
-
-        // Write data (4 bytes) little endian (no reverse needed)
-        serialPort.writeBytes(paddedChunk, 4)
-        println(paddedChunk.map(b => f"0x$b%02X").mkString("Data: (", " ", ")"))
-      }
-      address += 4
-    }
+    // Records are assembled into large buffers on a producer thread, no per-word writes or logging
+    val uploader = new Uploader(new SerialUploadPort(serialPort))
+    uploader.setProgress(Uploader.consoleProgress())
+    val records = uploader.sendRanges(ByteBuffer.wrap(bytes), startAddr & 0xFFFFFFFFL, Array(0L, bytes.length.toLong))
+    println(f"Sent $records records from 0x$startAddr%08X")
+  }
+
+  /*
+   * Send only the pages of a stitched image that changed since the last upload, followed by the
+   * bootloader sleep command. The pages loaded are remembered in <image>.loaded.
+   */
+  def sendDelta(imagePath: String, serialPort: SerialPort, startAddr: Int): Unit = {
+    val image = Paths.get(imagePath)
+    val result = DeltaUpload.upload(image, startAddr & 0xFFFFFFFFL, DeltaUpload.DEFAULT_PAGE_SIZE,
+      DeltaUpload.manifestFor(image), false, new SerialUploadPort(serialPort), Uploader.consoleProgress())
+    println(s"${result.changedPages} of ${result.pages} pages changed, sent ${result.records} records")
+  }
+
+  /*
+   * Check an image against its <image>.crc manifest, an image without a manifest passes
+   */
+  def verifyImage(image: Path): Boolean = {
+    val manifestPath = ImageManifest.manifestFor(image)
+    if (!Files.exists(manifestPath)) return true
+    val manifest = ImageManifest.read(manifestPath)
+    val result = manifest.verify(image, 0, Runtime.getRuntime.availableProcessors)
+    if (!result.isValid) manifest.writeResult(result, new PrintWriter(System.out, true))
+    result.isValid
   }
 
   def bootloaderSleep(serialPort: SerialPort): Unit = {
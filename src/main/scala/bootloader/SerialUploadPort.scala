@@ -0,0 +1,21 @@
+package bootloader
+
+import com.fazecast.jSerialComm.SerialPort
+import software.UploadPort
+
+import java.io.IOException
+
+/*
+ * UploadPort on a jSerialComm serial port, so the software.Uploader can stream to the board.
+ */
+class SerialUploadPort(serialPort: SerialPort) extends UploadPort {
+
+  override def write(buffer: Array[Byte], offset: Int, length: Int): Unit = {
+    var written = 0
+    while (written < length) {
+      val n = serialPort.writeBytes(buffer, length - written, offset + written)
+      if (n < 0) throw new IOException("Writing to " + serialPort.getSystemPortName + " failed")
+      written += n
+    }
+  }
+}
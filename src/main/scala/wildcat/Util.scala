@@ -15,7 +15,6 @@ package wildcat
 import java.io.File
 import java.nio.file.{Files, Paths}
 import scala.io.Source
-import net.fornwall.jelf.ElfFile
 
 object Util {
 
@@ -72,30 +71,12 @@ object Util {
     arr
   }
 
+  /**
+   * Load the PT_LOAD segments of an ELF file, .bss included.
+   * Word 0 is the lowest load address, which is address 0 for our test programs.
+   */
   def readElf(fileName: String): Array[Int] = {
-    val elf = ElfFile.from(new File(fileName))
-    if (!elf.is32Bits() || elf.e_machine != 0xf3) throw new Exception("Not a RV32I executable")
-    /*
-    for (i <- 1 until elf.e_shnum) {
-      val sect = elf.getSection(i)
-      println(s"section $i: ${sect.header.getName} ${sect.header.sh_name} ${sect.header.sh_addr} ${sect.header.sh_size}")
-    }
-     */
-    val textSection = elf.firstSectionByName(".text")
-    val text = byteToWord(textSection.getData)
-    val dataSection = elf.firstSectionByName(".data")
-    if (dataSection == null) return text
-
-    val data = byteToWord(dataSection.getData)
-    val length = text.length + data.length + ((dataSection.header.sh_addr - textSection.header.sh_size) / 4)
-    val mem = new Array[Int](length.toInt)
-    for (i <- 0 until text.length) {
-      mem(i) = text(i)
-    }
-    for (i <- 0 until data.length) {
-      mem((dataSection.header.sh_addr/4 + i).toInt) = data(i)
-    }
-    mem
+    software.ELFHandler.load(Paths.get(fileName)).getWords
   }
 
   def getCode(name: String): (Array[Int], Int) = {
@@ -20,8 +20,16 @@ import wildcat.LoadStoreFunct3._
 import wildcat.CSRFunct3._
 import wildcat.InstrType._
 import wildcat.{CSR, CSRFile, CSRFunct3, Util}
+import software.{ELFHandler, PredecodedImage, RiscVDecoder, SparseMemoryImage, TraceWriter}
 
-class SimRV(mem: Array[Int], start: Int, stop: Int) {
+import java.nio.channels.FileChannel
+import java.nio.file.{Paths, StandardOpenOption}
+
+class SimRV(mem: SparseMemoryImage, start: Int, stop: Int, predecoded: PredecodedImage = null,
+            trace: TraceWriter = null, verbose: Boolean = false) {
+
+  // Memory holding just the program, accesses beyond it fail
+  def this(code: Array[Int], start: Int, stop: Int) = this(SimRV.memoryOf(code), start, stop)
 
   // That's the state of the processor.
   // That's it, nothing else (except memory ;-)
@@ -46,9 +54,43 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
   // some statistics
   var instrCnt = 0
 
+  // Predecoded image of the code (optional), entries are invalidated when the code is overwritten
+  private val predecodedFirst = if (predecoded != null) (predecoded.getBaseAddress >>> 2).toInt else 0
+  private val predecodedLength = if (predecoded != null) predecoded.length else 0
+  if (predecoded != null) {
+    val stale = predecoded.invalidateChanged(mem)
+    if (stale > 0 && predecoded.isByteSwapped(mem)) {
+      throw new IllegalArgumentException("Predecoded image has the wrong byte order, predecode raw images with RiscVOpcodeScanner -le")
+    }
+    if (stale > 0) println(s"Predecoded image: $stale entries differ from memory")
+  }
+
+  /**
+   * Execute the instruction at a word address, from the predecoded image if it holds a valid entry.
+   */
+  def executeWord(wordAddr: Int): Boolean = {
+    val index = wordAddr - predecodedFirst
+    if (index >= 0 && index < predecodedLength) {
+      val op = predecoded.getOp(index)
+      if ((op & PredecodedImage.VALID) != 0) {
+        val regs = predecoded.getRegisters(index)
+        return executeDecoded(predecoded.getWord(index), PredecodedImage.opcode(op), PredecodedImage.funct3(op),
+          PredecodedImage.funct7(op), PredecodedImage.isAlt(op), PredecodedImage.rd(regs),
+          PredecodedImage.rs1(regs), PredecodedImage.rs2(regs), predecoded.getImmediate(index))
+      }
+    }
+    execute(mem(wordAddr))
+  }
+
+  def writeMem(wordAddr: Int, value: Int): Unit = {
+    mem(wordAddr) = value
+    val index = wordAddr - predecodedFirst
+    if (index >= 0 && index < predecodedLength) {
+      predecoded.invalidate(index)
+    }
+  }
+
   def execute(instr: Int): Boolean = {
-    //println("EXECUTING INSTRUCTION: " + f"${instr}%08x" )
-    println("Instr: " + instr.toHexString + " at pc=" + pc.toHexString)
     // Do some decoding: extraction of decoded fields
     val opcode = instr & 0x7f
     val rd = (instr >> 7) & 0x01f
@@ -124,6 +166,19 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
     // single bit on extended function - this is not nice
     val sraSub = funct7 == SRA_SUB && (opcode == Alu || (opcode == AluImm && funct3 == F3_SRL_SRA))
 
+    executeDecoded(instr, opcode, funct3, funct7, sraSub, rd, rs1, rs2, imm)
+  }
+
+  /**
+   * Execute an instruction whose fields are already extracted,
+   * either by execute() or from a predecoded image.
+   */
+  def executeDecoded(instr: Int, opcode: Int, funct3: Int, funct7: Int, sraSub: Boolean,
+                     rd: Int, rs1: Int, rs2: Int, imm: Int): Boolean = {
+    //println("EXECUTING INSTRUCTION: " + f"${instr}%08x" )
+    if (verbose) println("Instr: " + instr.toHexString + " at pc=" + pc.toHexString)
+    if (trace != null) trace.instruction(pc, instr)
+
     def alu(funct3: Int, sraSub: Boolean, op1: Int, op2: Int): Int = {
       val shamt = op2 & 0x1f
 
@@ -258,21 +313,21 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
               case 2 => 0xff00ffff
               case 3 => 0x00ffffff
             }
-            mem(wordAddr) = (mem(wordAddr) & mask) | ((value & 0xff) << (8 * (addr & 0x03)))
+            writeMem(wordAddr, (mem(wordAddr) & mask) | ((value & 0xff) << (8 * (addr & 0x03))))
           }
           case SH => {
             val mask = (addr & 0x03) match {
               case 0 => 0xffff0000
               case 2 => 0x0000ffff
             }
-            mem(wordAddr) = (mem(wordAddr) & mask) | ((value & 0xffff) << (8 * (addr & 0x03)))
+            writeMem(wordAddr, (mem(wordAddr) & mask) | ((value & 0xffff) << (8 * (addr & 0x03))))
           }
           case SW => {
             // very primitive IO simulation
             if (addr == 0xf0000004) {
               println("out: " + value.toChar)
             } else {
-              mem(wordAddr) = value
+              writeMem(wordAddr, value)
             }
           }
         }
@@ -310,6 +365,7 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
           }
 
         case CSRRW | CSRRS | CSRRC =>
+          if (trace != null) trace.csr(csrAddr, RiscVDecoder.writesCSR(instr))
           //println("HANDLING NORMAL CSR: " + CSRFunct3.name(funct3))
           var result = 0 // Standard value
           if (funct3 == CSRRW) {
@@ -325,6 +381,7 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
           (result, true, pcNext)
 
         case CSRRWI | CSRRSI | CSRRCI =>
+          if (trace != null) trace.csr(csrAddr, RiscVDecoder.writesCSR(instr))
           //println("HANDLING IMM CSR: " + CSRFunct3.name(funct3))
           val zimm = rs1 // For immediate variants, rs1 field contains zimm
           var result = 0
@@ -359,7 +416,7 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
         }
         case 0x03 => { // SC.W
           if (reservationValid && reservationAddr == addr) {
-            mem(wordAddr) = rs2Val
+            writeMem(wordAddr, rs2Val)
             reservationValid = false
             (0, true) // Success: return 0
           } else {
@@ -367,27 +424,27 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
           }
         }
         case 0x01 => { // AMOSWAP.W
-          mem(wordAddr) = rs2Val
+          writeMem(wordAddr, rs2Val)
           (oldValue, true)
         }
         case 0x00 => { // AMOADD.W
           val result = oldValue + rs2Val
-          mem(wordAddr) = result
+          writeMem(wordAddr, result)
           (oldValue, true)
         }
         case 0x04 => { // AMOXOR.W
           val result = oldValue ^ rs2Val
-          mem(wordAddr) = result
+          writeMem(wordAddr, result)
           (oldValue, true)
         }
         case 0x0C => { // AMOAND.W
           val result = oldValue & rs2Val
-          mem(wordAddr) = result
+          writeMem(wordAddr, result)
           (oldValue, true)
         }
         case 0x08 => { // AMOOR.W
           val result = oldValue | rs2Val
-          mem(wordAddr) = result
+          writeMem(wordAddr, result)
           (oldValue, true)
         }
         case _ => (0, false)
@@ -431,8 +488,14 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
       case AluImm => (alu(funct3, sraSub, rs1Val, imm), true, pcNext)
       case Alu => (alu(funct3, sraSub, rs1Val, rs2Val), true, pcNext)
       case Branch => (0, false, if (compare(funct3, rs1Val, rs2Val)) pc + imm else pcNext)
-      case Load => (load(funct3, rs1Val, imm), true, pcNext)
-      case Store => store(funct3, rs1Val, imm, rs2Val); (0, false, pcNext)
+      case Load =>
+        val value = load(funct3, rs1Val, imm)
+        if (trace != null) trace.memory(false, rs1Val + imm, 1 << (funct3 & 3), value)
+        (value, true, pcNext)
+      case Store =>
+        store(funct3, rs1Val, imm, rs2Val)
+        if (trace != null) trace.memory(true, rs1Val + imm, 1 << (funct3 & 3), rs2Val)
+        (0, false, pcNext)
       case Lui => (imm, true, pcNext)
       case AuiPc => (pc + imm, true, pcNext)
       case Jal => (pc + 4, true, pc + imm)
@@ -473,7 +536,7 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
 
     // Save cause to MCAUSE
     csrFile.write(CSR.MCAUSE, cause)
-    println("Handling Exception #: " + csrFile.read(CSR.MCAUSE))
+    if (verbose) println("Handling Exception #: " + csrFile.read(CSR.MCAUSE))
 
     // Save instr to MTVAL
     csrFile.write(CSR.MTVAL, instr)
@@ -486,7 +549,7 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
 
     // Jump to trap handler
     newPC = csrFile.read(CSR.MTVEC)
-    println("Jumping to: " + f"${newPC}%08x")
+    if (verbose) println("Jumping to: " + f"${newPC}%08x")
 
     if(newPC == 0){
      return (false, newPC) // end execution
@@ -538,8 +601,7 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
         println(s"PC out of bounds: 0x${pc.toHexString}")
         cont = false
       } else {
-        val instr = mem(pc >>> 2)
-        cont = execute(instr)
+        cont = executeWord(pc >>> 2)
       }
     }
 
@@ -552,42 +614,92 @@ class SimRV(mem: Array[Int], start: Int, stop: Int) {
 
 object SimRV {
 
-  def runSimRV(file: String) = {
-    val mem = new Array[Int](1024 * 256) // 1 MB, also check masking in load and store
+  // Exactly the size of the program, an empty program gets one page as a memory cannot be empty
+  def memoryOf(code: Array[Int]) = {
+    val mem = new SparseMemoryImage(if (code.isEmpty) SparseMemoryImage.PAGE_SIZE else 4L * code.length)
+    mem.putWords(0, code)
+    mem
+  }
+
+  def runSimRV(file: String, predecoded: PredecodedImage = null, trace: TraceWriter = null, verbose: Boolean = false) = {
+    val mem = new SparseMemoryImage(1024 * 1024) // 1 MB, also check masking in load and store
 
     val (code, start) = Util.getCode(file)
 
-    for (i <- code.indices) {
-      mem(i) = code(i)
-    }
+    mem.putWords(0, code)
 
     val stop = start + code.length * 4
 
     // TODO: do we really want ot ba able to start at an arbitrary address?
     // Read in RV spec
-    val sim = new SimRV(mem, start, stop)
+    val sim = new SimRV(mem, start, stop, predecoded, trace, verbose)
     sim
   }
 
-  def runSimRVforImage(file: String) = {
-    val mem = new Array[Int](1024 * 4096) // 16 MB to fit the image, also check masking in load and store
-
-    val (image, start) = Util.getCode(file)
-
-    for (i <- 0 until image.length) { //Load kernel in at 4MB
-      mem(i) = image(i)
+  /**
+   * Run a full system image in memory covering the whole 32-bit address space. Only the
+   * touched pages are allocated. An ELF file is loaded at its physical addresses and
+   * started at its entry point, a raw image is loaded at address 0.
+   */
+  def runSimRVforImage(file: String, predecoded: PredecodedImage = null, trace: TraceWriter = null,
+                       verbose: Boolean = false) = {
+    val mem = new SparseMemoryImage()
+    val path = Paths.get(file)
+
+    val (start, stop) = if (file.endsWith(".out")) {
+      // No end of code for ELF images, the simulation ends on the first trap without handler
+      (ELFHandler.load(path, mem).toInt, Int.MaxValue)
+    } else if (file.endsWith(".bin")) {
+      val channel = FileChannel.open(path, StandardOpenOption.READ)
+      try {
+        mem.load(0, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+        (0, (channel.size() & ~3L).toInt)
+      } finally {
+        channel.close()
+      }
+    } else {
+      val (image, start) = Util.getCode(file)
+      mem.putWords(0, image)
+      (start, start + image.length * 4)
     }
 
-    val stop = start + image.length * 4
-
-    // TODO: do we really want ot ba able to start at an arbitrary address?
-    // Read in RV spec
-    val sim = new SimRV(mem, start, stop)
+    val sim = new SimRV(mem, start, stop, predecoded, trace, verbose)
     sim
   }
 
   def main(args: Array[String]): Unit = {
-    runSimRVforImage(args(0))
+    var verbose = false
+    var traceFile: String = null
+    var traceCsr = false
+    var traceMem = false
+    var files = List[String]()
+    var i = 0
+    while (i < args.length) {
+      args(i) match {
+        case "-v" => verbose = true
+        case "--trace" if i + 1 < args.length => i += 1; traceFile = args(i)
+        case "--trace-csr" => traceCsr = true
+        case "--trace-mem" => traceMem = true
+        case arg => files = files :+ arg
+      }
+      i += 1
+    }
+    if (files.isEmpty || files.length > 2) {
+      println("Usage: SimRV [-v] [--trace <file> [--trace-csr] [--trace-mem]] <program> [<predecoded>]")
+      println("  -v           print every instruction and exception")
+      println("  --trace      write a binary execution trace, read with software.TraceAnalyzer")
+      println("  predecoded   sidecar written by RiscVOpcodeScanner --predecode")
+      sys.exit(1)
+    }
+
+    val predecoded = if (files.length > 1) PredecodedImage.open(Paths.get(files(1))) else null
+    val trace = if (traceFile != null) new TraceWriter(Paths.get(traceFile), traceCsr, traceMem) else null
+    try {
+      val sim = runSimRVforImage(files.head, predecoded, trace, verbose)
+      println(s"Executed ${sim.instrCnt} instructions, pc=0x${sim.pc.toHexString}")
+    } finally {
+      if (trace != null) trace.close()
+    }
   }
 }
 
@@ -0,0 +1,41 @@
+package wildcat.pipeline
+
+import chisel3._
+import chisel3.util._
+import chisel3.util.experimental.loadMemoryFromFileInline
+import firrtl.annotations.MemoryLoadFileType
+import software.ImageHandler
+
+import java.nio.file.{Files, Paths}
+
+/**
+ * On-chip memory with one clock cycle read timing, like InstructionROM, but preloaded from a
+ * $readmemh file by the simulator or synthesis tool. The program is not part of the generated
+ * hardware, so elaboration time and FIRRTL size do not grow with the program. The $readmemh is
+ * emitted inline in the module, not in a separate bind file, so Vivado reads it as well.
+ */
+class InstructionFileROM(hexFile: String, nrWords: Int) extends Module {
+  val io = IO(Flipped(new InstrIO()))
+
+  val instructions = Mem(nrWords, UInt(32.W))
+  loadMemoryFromFileInline(instructions, hexFile, MemoryLoadFileType.Hex)
+  val instructionReg = RegInit(0x00000013.U(32.W))
+  instructionReg := instructions(io.address(log2Up(nrWords) + 1, 2))
+  io.data := instructionReg
+  io.stall := false.B
+}
+
+object InstructionFileROM {
+  /**
+   * Write the code to a $readmemh file and build a ROM of the next power of two words holding it.
+   * The file is dense, not every simulator reads the @ addresses of a sparse one. It is written
+   * next to the generated Verilog and referenced by its absolute path, simulators and Vivado
+   * run in other directories.
+   */
+  def apply(code: Array[Int], hexFile: String = "generated/imem.hex"): InstructionFileROM = {
+    val path = Paths.get(hexFile).toAbsolutePath
+    Files.createDirectories(path.getParent)
+    ImageHandler.writeReadmemh(code, path, false)
+    new InstructionFileROM(path.toString, 1 << log2Up(code.length max 2))
+  }
+}
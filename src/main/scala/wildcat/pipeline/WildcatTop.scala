@@ -19,7 +19,8 @@ import uart.{MemoryMappedUart, MemoryMappedUartWithInterrupts}
  * Edited by Georg and Alexander to test our Bootloader
  *
  */
-class WildcatTop(file: String, dmemNrByte: Int = 4096, freqHz: Int = 100000000, baudrate: Int = 115200) extends Module {
+class WildcatTop(file: String, dmemNrByte: Int = 4096, freqHz: Int = 100000000, baudrate: Int = 115200,
+                 fileRom: Boolean = false) extends Module {
 
   val io = IO(new Bundle {
     val led = Output(UInt(16.W))
@@ -38,10 +39,12 @@ class WildcatTop(file: String, dmemNrByte: Int = 4096, freqHz: Int = 100000000,
   val dmem = Module(new ScratchPadMem(memory, nrBytes = dmemNrByte))
   cpu.io.dmem <> dmem.io
 
-  val imem = Module(new InstructionROM(memory))
-  imem.io.address := cpu.io.imem.address
-  cpu.io.imem.data := imem.io.data
-  cpu.io.imem.stall := imem.io.stall
+  // InstructionROM elaborates every instruction into the hardware, with fileRom the program is
+  // preloaded from generated/imem.hex instead
+  val imem = if (fileRom) Module(InstructionFileROM(memory)).io else Module(new InstructionROM(memory)).io
+  imem.address := cpu.io.imem.address
+  cpu.io.imem.data := imem.data
+  cpu.io.imem.stall := imem.stall
 
   // ********************************************************************
   // Cache, bus and memory controller connections
@@ -172,5 +175,6 @@ class WildcatTop(file: String, dmemNrByte: Int = 4096, freqHz: Int = 100000000,
 }
 
 object WildcatTop extends App {
-  emitVerilog(new WildcatTop(args(0)), Array("--target-dir", "generated"))
+  // --file-rom preloads the instruction memory from generated/imem.hex
+  emitVerilog(new WildcatTop(args(0), fileRom = args.contains("--file-rom")), Array("--target-dir", "generated"))
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package software
+
+import java.nio.file.{Files, Path}
+import org.scalatest.flatspec.AnyFlatSpec
+
+class DeltaUploadTest extends AnyFlatSpec {
+
+  val pageSize = 4096
+
+  def image(dir: Path): Path = {
+    val random = new scala.util.Random(7)
+    val bytes = new Array[Byte](8 * pageSize + 100)
+    random.nextBytes(bytes)
+    Files.write(dir.resolve("image.bin"), bytes)
+  }
+
+  def upload(image: Path, manifest: Path, full: Boolean = false) =
+    DeltaUpload.upload(image, 0, pageSize, manifest, full, new LoopbackPort(false, 0), null)
+
+  "DeltaUpload" should "send the whole image and record nothing without a manifest" in {
+    val dir = Files.createTempDirectory("delta")
+    val file = image(dir)
+    for (_ <- 0 until 2) {
+      val result = upload(file, null)
+      assert(result.full)
+      assert(result.changedPages == result.pages)
+    }
+    assert(!Files.exists(DeltaUpload.manifestFor(file)))
+  }
+
+  it should "send only the pages changed since the last upload" in {
+    val dir = Files.createTempDirectory("delta")
+    val file = image(dir)
+    val manifest = dir.resolve("board.loaded")
+    val first = upload(file, manifest)
+    assert(first.full && first.pages == 9 && first.changedPages == 9)
+    assert(Files.exists(manifest))
+
+    val unchanged = upload(file, manifest)
+    assert(!unchanged.full && unchanged.changedPages == 0 && unchanged.records == 0)
+
+    val bytes = Files.readAllBytes(file)
+    bytes(3 * pageSize + 5) = (bytes(3 * pageSize + 5) + 1).toByte
+    bytes(bytes.length - 1) = (bytes(bytes.length - 1) + 1).toByte
+    Files.write(file, bytes)
+    val delta = upload(file, manifest)
+    assert(delta.changedPages == 2)
+    // Changed pages are sent with their zero words, the board may hold other data there
+    assert(delta.records == pageSize / 4 + 25)
+  }
+
+  it should "send everything when asked to or the manifest is for another base address" in {
+    val dir = Files.createTempDirectory("delta")
+    val file = image(dir)
+    val manifest = dir.resolve("board.loaded")
+    upload(file, manifest)
+    assert(upload(file, manifest, full = true).changedPages == 9)
+    val moved = DeltaUpload.upload(file, 0x1000, pageSize, manifest, false, new LoopbackPort(false, 0), null)
+    assert(moved.full && moved.changedPages == 9)
+  }
+}
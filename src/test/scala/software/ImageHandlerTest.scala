@@ -0,0 +1,67 @@
+package software
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import org.scalatest.flatspec.AnyFlatSpec
+
+import software.ImageHandler.Format
+
+class ImageHandlerTest extends AnyFlatSpec {
+
+  def prepare(bytes: Array[Byte], baseAddress: Long, format: Format): String = {
+    val out = Files.createTempFile("image", ".txt")
+    try {
+      ImageHandler.prepareImage(ByteBuffer.wrap(bytes), baseAddress, out, format)
+      new String(Files.readAllBytes(out))
+    } finally {
+      Files.delete(out)
+    }
+  }
+
+  def words(values: Int*): Array[Byte] = {
+    val buffer = ByteBuffer.allocate(4 * values.length).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+    values.foreach(buffer.putInt)
+    buffer.array
+  }
+
+  "ImageHandler" should "write Intel HEX records with extended linear addresses" in {
+    val hex = prepare(words(0x04030201, 0, 0x0C0B0A09), 0x8000FFF8L, Format.IHEX)
+    assert(hex ==
+      ":0200000480007A\n" +
+      ":04FFF80001020304FB\n" +
+      ":02000004800179\n" +
+      ":04000000090A0B0CD2\n" +
+      ":00000001FF\n")
+  }
+
+  it should "have valid Intel HEX checksums" in {
+    val random = new scala.util.Random(1)
+    val bytes = new Array[Byte](1000)
+    random.nextBytes(bytes)
+    for (line <- prepare(bytes, 0x1234, Format.IHEX).split("\n")) {
+      assert(line.startsWith(":"))
+      val sum = line.substring(1).grouped(2).map(Integer.parseInt(_, 16)).sum
+      assert((sum & 0xFF) == 0, line)
+    }
+  }
+
+  it should "write $readmemh words with word index jumps over zero stretches" in {
+    val mem = prepare(words(1, 0, 2, 0, 0, 0, 3), 0x1000, Format.READMEMH)
+    assert(mem == "00000001\n00000000\n00000002\n@00000006\n00000003\n")
+  }
+
+  it should "zero pad an odd-size tail" in {
+    val mem = prepare(Array[Byte](1, 2, 3, 4, 5), 0, Format.READMEMH)
+    assert(mem == "04030201\n00000005\n")
+  }
+
+  it should "write a dense $readmemh file for the instruction ROM" in {
+    val out = Files.createTempFile("imem", ".hex")
+    try {
+      ImageHandler.writeReadmemh(Array(0x13, 0, 0, -1), out, false)
+      assert(new String(Files.readAllBytes(out)) == "00000013\n00000000\n00000000\nFFFFFFFF\n")
+    } finally {
+      Files.delete(out)
+    }
+  }
+}
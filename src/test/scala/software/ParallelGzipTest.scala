@@ -0,0 +1,54 @@
+package software
+
+import java.io.{ByteArrayOutputStream, FileInputStream}
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.zip.GZIPInputStream
+import org.scalatest.flatspec.AnyFlatSpec
+
+class ParallelGzipTest extends AnyFlatSpec {
+
+  def readAll(in: java.io.InputStream): Array[Byte] = {
+    val out = new ByteArrayOutputStream()
+    try in.transferTo(out) finally in.close()
+    out.toByteArray
+  }
+
+  // Compressible, but not trivially so
+  val data: Array[Byte] = {
+    val random = new scala.util.Random(42)
+    Array.tabulate(3 * 100000 + 17)(i => if (i % 64 < 8) random.nextInt().toByte else (i / 64).toByte)
+  }
+
+  "ParallelGzip" should "round trip an image split into many members" in {
+    val dir = Files.createTempDirectory("gzip")
+    val gz = dir.resolve("image.bin.gz")
+    val out = dir.resolve("image.bin")
+    ParallelGzip.compress(ByteBuffer.wrap(data), gz, 6, 64 * 1024, 4)
+    assert(ParallelGzip.decompress(gz, out, 4) == data.length)
+    assert(Files.readAllBytes(out).sameElements(data))
+    assert(readAll(ParallelGzip.open(gz.toFile, 2)).sameElements(data))
+  }
+
+  it should "write a file a standard gzip reader accepts" in {
+    val dir = Files.createTempDirectory("gzip")
+    val gz = dir.resolve("image.bin.gz")
+    ParallelGzip.compress(ByteBuffer.wrap(data), gz, -1, 50000, 3)
+    assert(readAll(new GZIPInputStream(new FileInputStream(gz.toFile))).sameElements(data))
+  }
+
+  it should "read a single-member file written by a standard gzip writer" in {
+    val dir = Files.createTempDirectory("gzip")
+    val gz = dir.resolve("image.bin.gz")
+    val writer = new java.util.zip.GZIPOutputStream(Files.newOutputStream(gz))
+    try writer.write(data) finally writer.close()
+    assert(readAll(ParallelGzip.open(gz.toFile, 4)).sameElements(data))
+  }
+
+  it should "round trip an empty image" in {
+    val dir = Files.createTempDirectory("gzip")
+    val gz = dir.resolve("empty.gz")
+    ParallelGzip.compress(ByteBuffer.allocate(0), gz, 6, 1024, 2)
+    assert(readAll(ParallelGzip.open(gz.toFile, 2)).isEmpty)
+  }
+}
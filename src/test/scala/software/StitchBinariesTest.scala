@@ -0,0 +1,51 @@
+package software
+
+import java.io.IOException
+import java.nio.file.{Files, Path}
+import java.util.Arrays
+import org.scalatest.flatspec.AnyFlatSpec
+
+class StitchBinariesTest extends AnyFlatSpec {
+
+  def input(dir: Path, name: String, size: Int, value: Int): Path = {
+    val bytes = new Array[Byte](size)
+    Arrays.fill(bytes, value.toByte)
+    Files.write(dir.resolve(name), bytes)
+  }
+
+  "StitchBinaries" should "reject overlapping entries" in {
+    val dir = Files.createTempDirectory("stitch")
+    val layout = Files.write(dir.resolve("layout.txt"), java.util.List.of(
+      s"${input(dir, "a.bin", 0x100, 1)} 0x0",
+      s"${input(dir, "b.bin", 0x10, 2)} 0xF0"))
+    val e = intercept[IOException] {
+      StitchBinaries.stitch(StitchBinaries.parseManifest(layout), dir.resolve("out.bin"))
+    }
+    assert(e.getMessage.contains("overlaps"))
+  }
+
+  it should "place entries after the previous one at their alignment" in {
+    val dir = Files.createTempDirectory("stitch")
+    val layout = Files.write(dir.resolve("layout.txt"), java.util.List.of(
+      s"${input(dir, "a.bin", 10, 1)} 0",
+      s"${input(dir, "b.bin", 4, 2)} + align=16",
+      s"${input(dir, "c.bin", 2, 3)} 0x40"))
+    val out = dir.resolve("out.bin")
+    assert(StitchBinaries.stitch(StitchBinaries.parseManifest(layout), out) == 0x42)
+    val bytes = Files.readAllBytes(out)
+    assert(bytes.slice(0, 10).forall(_ == 1))
+    assert(bytes.slice(10, 16).forall(_ == 0))
+    assert(bytes.slice(16, 20).forall(_ == 2))
+    assert(bytes.slice(20, 0x40).forall(_ == 0))
+    assert(bytes.slice(0x40, 0x42).forall(_ == 3))
+  }
+
+  it should "report the line of an invalid layout entry" in {
+    val dir = Files.createTempDirectory("stitch")
+    val layout = Files.write(dir.resolve("layout.txt"), java.util.List.of("# comment", "a.bin -16"))
+    val e = intercept[IOException] {
+      StitchBinaries.parseManifest(layout)
+    }
+    assert(e.getMessage.endsWith(":2: negative offset -16"))
+  }
+}
@@ -0,0 +1,68 @@
+package software
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import org.scalatest.flatspec.AnyFlatSpec
+
+class UploaderTest extends AnyFlatSpec {
+
+  // Address and word of every record, in the order they were sent
+  def records(bytes: Array[Byte]): Seq[(Long, Int)] = {
+    val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+    (0 until bytes.length / Uploader.RECORD_BYTES).map { i =>
+      (buffer.getInt(i * 8) & 0xFFFFFFFFL, buffer.getInt(i * 8 + 4))
+    }
+  }
+
+  def image(size: Int): Array[Byte] = {
+    val random = new scala.util.Random(size)
+    val bytes = new Array[Byte](size)
+    random.nextBytes(bytes)
+    // Some all-zero words that are not sent
+    for (i <- 0 until size / 4 by 7) java.util.Arrays.fill(bytes, i * 4, i * 4 + 4, 0.toByte)
+    bytes
+  }
+
+  "Uploader" should "send every non-zero word of an image over a loopback port" in {
+    val bytes = image(1 << 20)
+    val port = new LoopbackPort()
+    // A small buffer, so the image takes many buffers
+    val uploader = new Uploader(port, 4096)
+    val sent = uploader.sendRanges(ByteBuffer.wrap(bytes), 0x1000, Array(0L, bytes.length.toLong))
+
+    val received = new Array[Byte](bytes.length)
+    val words = ByteBuffer.wrap(received).order(ByteOrder.LITTLE_ENDIAN)
+    val all = records(port.toByteArray)
+    assert(all.length == sent)
+    assert(all.map(_._1) == all.map(_._1).sorted)
+    for ((address, word) <- all) {
+      assert(word != 0)
+      words.putInt((address - 0x1000).toInt, word)
+    }
+    assert(received.sameElements(bytes))
+  }
+
+  it should "zero pad an odd-size tail" in {
+    val bytes = Array[Byte](1, 2, 3, 4, 5, 6, 7)
+    val port = new LoopbackPort()
+    val sent = new Uploader(port).sendRanges(ByteBuffer.wrap(bytes), 0x100, Array(0L, bytes.length.toLong))
+    assert(sent == 2)
+    assert(records(port.toByteArray) == Seq((0x100L, 0x04030201), (0x104L, 0x00070605)))
+  }
+
+  it should "send zero words only when asked to" in {
+    val bytes = new Array[Byte](16)
+    val port = new LoopbackPort()
+    val uploader = new Uploader(port)
+    assert(uploader.sendRanges(ByteBuffer.wrap(bytes), 0, Array(0L, 16L)) == 0)
+    uploader.setSendZeros(true)
+    assert(uploader.sendRanges(ByteBuffer.wrap(bytes), 0, Array(4L, 12L)) == 2)
+    assert(records(port.toByteArray).map(_._1) == Seq(4L, 8L))
+  }
+
+  it should "finish with the bootloader sleep command" in {
+    val port = new LoopbackPort()
+    new Uploader(port).sendSleep()
+    assert(port.toByteArray.sameElements(Uploader.BOOTLOADER_SLEEP))
+  }
+}
@@ -0,0 +1,35 @@
+package wildcat
+
+import java.nio.file.Files
+import scala.sys.process._
+import org.scalatest.flatspec.AnyFlatSpec
+
+import software.PredecodedImage
+import wildcat.isasim._
+
+/**
+ * Run every test program once plainly and once from a predecoded sidecar, the register state
+ * and instruction count have to be the same.
+ */
+class SimulatorPredecodedTest extends AnyFlatSpec {
+
+  val files = Util.getAllTests()
+  for (f <- files) {
+    s"Predecoded simulator $f" should "match the plain simulator" in {
+      s"make app APP=$f".!
+      val sim = SimRV.runSimRV("a.out")
+      val sidecar = Files.createTempFile("wildcat", ".pd")
+      try {
+        val (code, _) = Util.getCode("a.out")
+        PredecodedImage.decode(code, 0).write(sidecar)
+        val predecoded = SimRV.runSimRV("a.out", PredecodedImage.open(sidecar))
+        assert(predecoded.reg.sameElements(sim.reg), f"Registers differ in case ${sim.reg(3)}")
+        assert(predecoded.pc == sim.pc)
+        assert(predecoded.instrCnt == sim.instrCnt)
+        assert(predecoded.reg(10) == 0, f"Failed case ${predecoded.reg(3)}")
+      } finally {
+        Files.delete(sidecar)
+      }
+    }
+  }
+}